@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Collects GC pauses from the notifications of the garbage collectors<br>
+ * <p>
+ * Concurrent cycles are not pauses and are excluded.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class GcMonitor implements NotificationListener {
+
+	private final List<NotificationEmitter> mEmitters = new ArrayList<NotificationEmitter>();
+
+	private long mNumOfPauses;
+	private long mTotalPauseMillis;
+	private long mMaxPauseMillis;
+
+	public void start() {
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc instanceof NotificationEmitter) {
+				final NotificationEmitter emitter = (NotificationEmitter) gc;
+				emitter.addNotificationListener(this, null, null);
+				mEmitters.add(emitter);
+			}
+		}
+	}
+
+	public void stop() {
+		for (NotificationEmitter emitter : mEmitters) {
+			try {
+				emitter.removeNotificationListener(this);
+			} catch (ListenerNotFoundException e) {
+			}
+		}
+		mEmitters.clear();
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+			return;
+		}
+		final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+		final String action = info.getGcAction().toLowerCase();
+		if (action.contains("concurrent") || info.getGcName().contains("Cycles")) {
+			return;
+		}
+
+		final long pauseMillis = info.getGcInfo().getDuration();
+		synchronized (this) {
+			mNumOfPauses++;
+			mTotalPauseMillis += pauseMillis;
+			mMaxPauseMillis = Math.max(mMaxPauseMillis, pauseMillis);
+		}
+	}
+
+	public synchronized void reset() {
+		mNumOfPauses = 0;
+		mTotalPauseMillis = 0;
+		mMaxPauseMillis = 0;
+	}
+
+	public synchronized long getNumOfPauses() {
+		return mNumOfPauses;
+	}
+
+	public synchronized long getTotalPauseMillis() {
+		return mTotalPauseMillis;
+	}
+
+	public synchronized long getMaxPauseMillis() {
+		return mMaxPauseMillis;
+	}
+}
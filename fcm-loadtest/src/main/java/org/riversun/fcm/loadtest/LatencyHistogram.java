@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies with about 1% precision<br>
+ * <p>
+ * Values are counted in log-linear buckets: 128 linear sub-buckets for each
+ * power of two of microseconds, so memory is fixed regardless of the number
+ * of samples.
+ * <p>
+ * This class is not thread-safe. Use a histogram per thread and
+ * {@link #add(LatencyHistogram)} them.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+	private final long[] mCounts = new long[(MAGNITUDES + 1) * SUB_BUCKETS];
+	private long mTotalCount;
+	private long mMaxMicros;
+	private double mSumMicros;
+
+	/**
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		final long micros = Math.max(0, nanos / 1000);
+		mCounts[indexOf(micros)]++;
+		mTotalCount++;
+		mMaxMicros = Math.max(mMaxMicros, micros);
+		mSumMicros += micros;
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < mCounts.length; i++) {
+			mCounts[i] += other.mCounts[i];
+		}
+		mTotalCount += other.mTotalCount;
+		mMaxMicros = Math.max(mMaxMicros, other.mMaxMicros);
+		mSumMicros += other.mSumMicros;
+	}
+
+	public void clear() {
+		Arrays.fill(mCounts, 0);
+		mTotalCount = 0;
+		mMaxMicros = 0;
+		mSumMicros = 0;
+	}
+
+	public long getTotalCount() {
+		return mTotalCount;
+	}
+
+	public long getMaxMicros() {
+		return mMaxMicros;
+	}
+
+	public double getMeanMicros() {
+		return mTotalCount == 0 ? 0 : mSumMicros / mTotalCount;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket that contains the percentile
+	 * 
+	 * @param percentile
+	 *            0 to 100
+	 * @return
+	 */
+	public long getPercentileMicros(double percentile) {
+		if (mTotalCount == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(mTotalCount * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < mCounts.length; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), mMaxMicros);
+			}
+		}
+		return mMaxMicros;
+	}
+
+	private static int indexOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		// magnitude 1 covers [128, 256) with step 1, magnitude 2 [256, 512)
+		// with step 2, ...
+		final int magnitude = 64 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		final int subBucket = (int) (micros >>> (magnitude - 1)) - SUB_BUCKETS;
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBoundOf(int index) {
+		final int magnitude = index / SUB_BUCKETS;
+		final int subBucket = index % SUB_BUCKETS;
+		if (magnitude == 0) {
+			return subBucket;
+		}
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - 1)) - 1;
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.riversun.fcm.FcmClient;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.Notification;
+import org.riversun.fcm.model.Priority;
+
+/**
+ * Load generator that drives FcmClient end to end against a local
+ * {@link StubServer}<br>
+ * <p>
+ * Worker threads build an {@link EntityMessage} of the configured mix, push it
+ * with {@link FcmClient#pushToEntities(EntityMessage)} and visit the failures
+ * of the response, in a loop. After the warm-up period, throughput, latency
+ * percentiles, bytes allocated per message by the worker threads and GC
+ * pauses are measured, reported every interval and saved as JSON.
+ * 
+ * <pre>
+ * java -cp ... org.riversun.fcm.loadtest.LoadTest --duration=600 --concurrency=32 --audience=500 --mix=data:70,notification:20,large:10 --out=result.json
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class LoadTest {
+
+	private enum MessageType {
+		DATA, NOTIFICATION, LARGE
+	}
+
+	private final Map<String, String> mConfig = new LinkedHashMap<String, String>();
+
+	private final int mDurationSeconds;
+	private final int mWarmUpSeconds;
+	private final int mIntervalSeconds;
+	private final int mConcurrency;
+	private final int mAudienceSize;
+	private final long mLatencyMicros;
+	private final double mFailureRatio;
+	private final double mCanonicalIdRatio;
+	private final Path mOutFile;
+
+	private final MessageType[] mMix;
+	private final int[] mMixWeights;
+	private final int mTotalWeight;
+
+	private final List<String> mTokenPool = new ArrayList<String>();
+	private final String mLargeValue;
+
+	private volatile boolean mRunning = true;
+	private volatile boolean mMeasuring = false;
+
+	private final LongAdder mMessages = new LongAdder();
+	private final LongAdder mTokens = new LongAdder();
+	private final LongAdder mErrors = new LongAdder();
+	private final LongAdder mFailures = new LongAdder();
+
+	private final List<Worker> mWorkers = new ArrayList<Worker>();
+
+	public LoadTest(String[] args) {
+		mConfig.put("duration", "60");
+		mConfig.put("warmup", "10");
+		mConfig.put("interval", "10");
+		mConfig.put("concurrency", "16");
+		mConfig.put("audience", "100");
+		mConfig.put("mix", "data:70,notification:20,large:10");
+		mConfig.put("latency", "2000");
+		mConfig.put("failure", "0.01");
+		mConfig.put("canonical", "0.005");
+		mConfig.put("out", "loadtest-result.json");
+
+		for (String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0 || !mConfig.containsKey(arg.substring(2, eq))) {
+				throw new IllegalArgumentException("Unknown option " + arg + ". Options are " + mConfig.keySet());
+			}
+			mConfig.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+
+		mDurationSeconds = Integer.parseInt(mConfig.get("duration"));
+		mWarmUpSeconds = Integer.parseInt(mConfig.get("warmup"));
+		mIntervalSeconds = Integer.parseInt(mConfig.get("interval"));
+		mConcurrency = Integer.parseInt(mConfig.get("concurrency"));
+		mAudienceSize = Integer.parseInt(mConfig.get("audience"));
+		mLatencyMicros = Long.parseLong(mConfig.get("latency"));
+		mFailureRatio = Double.parseDouble(mConfig.get("failure"));
+		mCanonicalIdRatio = Double.parseDouble(mConfig.get("canonical"));
+		mOutFile = Paths.get(mConfig.get("out"));
+
+		if (mAudienceSize <= 0 || mAudienceSize > 1000) {
+			throw new IllegalArgumentException("audience must be 1 to 1000");
+		}
+
+		final String[] entries = mConfig.get("mix").split(",");
+		mMix = new MessageType[entries.length];
+		mMixWeights = new int[entries.length];
+		int totalWeight = 0;
+		for (int i = 0; i < entries.length; i++) {
+			final String[] pair = entries[i].split(":");
+			mMix[i] = MessageType.valueOf(pair[0].trim().toUpperCase());
+			mMixWeights[i] = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+			totalWeight += mMixWeights[i];
+		}
+		mTotalWeight = totalWeight;
+
+		for (int i = 0; i < mAudienceSize * 10; i++) {
+			mTokenPool.add("loadtest-token-" + i + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+		}
+		final StringBuilder sb = new StringBuilder();
+		while (sb.length() < 3000) {
+			sb.append("large payload ");
+		}
+		mLargeValue = sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		final LoadTest loadTest = new LoadTest(args);
+
+		// let every worker keep its connection alive
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", String.valueOf(loadTest.mConcurrency));
+		}
+		loadTest.run();
+	}
+
+	public void run() throws IOException, InterruptedException {
+		final StubServer server = new StubServer(mConcurrency, mLatencyMicros, mFailureRatio, mCanonicalIdRatio);
+		server.start();
+
+		final FcmClient client = new FcmClient(server.getEndpoint());
+		client.setAPIKey("loadtest");
+		client.warmUp(mConcurrency);
+
+		final GcMonitor gcMonitor = new GcMonitor();
+		gcMonitor.start();
+
+		for (int i = 0; i < mConcurrency; i++) {
+			final Worker worker = new Worker(client);
+			worker.setName("loadtest-worker-" + i);
+			worker.setDaemon(true);
+			mWorkers.add(worker);
+			worker.start();
+		}
+
+		log("Warming up for " + mWarmUpSeconds + " seconds");
+		TimeUnit.SECONDS.sleep(mWarmUpSeconds);
+
+		// start measurement
+		final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+		final long[] workerIds = new long[mWorkers.size()];
+		for (int i = 0; i < workerIds.length; i++) {
+			workerIds[i] = mWorkers.get(i).getId();
+		}
+
+		for (Worker worker : mWorkers) {
+			worker.clearHistograms();
+		}
+		mMessages.reset();
+		mTokens.reset();
+		mErrors.reset();
+		mFailures.reset();
+		gcMonitor.reset();
+		final long allocatedAtStart = sum(threadMXBean.getThreadAllocatedBytes(workerIds));
+		final long startNanos = System.nanoTime();
+		mMeasuring = true;
+		log("Measuring for " + mDurationSeconds + " seconds");
+
+		final JSONArray intervals = new JSONArray();
+		final LatencyHistogram total = new LatencyHistogram();
+		final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(mDurationSeconds);
+		long lastMessages = 0;
+		long lastNanos = startNanos;
+
+		while (System.nanoTime() < endNanos) {
+			final long sleepNanos = Math.min(TimeUnit.SECONDS.toNanos(mIntervalSeconds), endNanos - System.nanoTime());
+			if (sleepNanos > 0) {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			}
+
+			final LatencyHistogram interval = new LatencyHistogram();
+			for (Worker worker : mWorkers) {
+				worker.drainInterval(interval);
+			}
+			total.add(interval);
+
+			final long now = System.nanoTime();
+			final long messages = mMessages.sum();
+			final double messagesPerSecond = (messages - lastMessages) / ((now - lastNanos) / 1e9);
+			final long heapUsed = memoryMXBean.getHeapMemoryUsage().getUsed();
+			lastMessages = messages;
+			lastNanos = now;
+
+			intervals.put(new JSONObject()
+					.put("elapsed_seconds", round((now - startNanos) / 1e9))
+					.put("messages_per_second", round(messagesPerSecond))
+					.put("p50_micros", interval.getPercentileMicros(50))
+					.put("p99_micros", interval.getPercentileMicros(99))
+					.put("max_micros", interval.getMaxMicros())
+					.put("heap_used_bytes", heapUsed));
+			log(String.format("%6.0fs %10.1f msg/s  p50 %7d us  p99 %7d us  max %7d us  heap %5d MB", (now - startNanos) / 1e9, messagesPerSecond,
+					interval.getPercentileMicros(50), interval.getPercentileMicros(99), interval.getMaxMicros(), heapUsed >> 20));
+		}
+
+		mMeasuring = false;
+		final double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+		final long allocated = sum(threadMXBean.getThreadAllocatedBytes(workerIds)) - allocatedAtStart;
+		final long messages = mMessages.sum();
+
+		mRunning = false;
+		for (Worker worker : mWorkers) {
+			worker.join();
+		}
+		gcMonitor.stop();
+		server.stop();
+
+		final JSONObject latency = new JSONObject()
+				.put("mean", round(total.getMeanMicros()))
+				.put("p50", total.getPercentileMicros(50))
+				.put("p90", total.getPercentileMicros(90))
+				.put("p99", total.getPercentileMicros(99))
+				.put("p99_9", total.getPercentileMicros(99.9))
+				.put("max", total.getMaxMicros());
+
+		final JSONObject gc = new JSONObject()
+				.put("pauses", gcMonitor.getNumOfPauses())
+				.put("total_pause_millis", gcMonitor.getTotalPauseMillis())
+				.put("max_pause_millis", gcMonitor.getMaxPauseMillis());
+
+		final JSONObject results = new JSONObject()
+				.put("elapsed_seconds", round(elapsedSeconds))
+				.put("messages", messages)
+				.put("tokens", mTokens.sum())
+				.put("messages_per_second", round(messages / elapsedSeconds))
+				.put("tokens_per_second", round(mTokens.sum() / elapsedSeconds))
+				.put("errors", mErrors.sum())
+				.put("failed_tokens", mFailures.sum())
+				.put("latency_micros", latency)
+				.put("allocated_bytes_per_message", messages == 0 ? 0 : allocated / messages)
+				.put("gc", gc);
+
+		final JSONObject environment = new JSONObject()
+				.put("java_version", System.getProperty("java.version"))
+				.put("java_vm", System.getProperty("java.vm.name"))
+				.put("available_processors", Runtime.getRuntime().availableProcessors())
+				.put("max_heap_bytes", Runtime.getRuntime().maxMemory())
+				.put("jvm_arguments", new JSONArray(ManagementFactory.getRuntimeMXBean().getInputArguments()));
+
+		final JSONObject report = new JSONObject()
+				.put("timestamp", System.currentTimeMillis())
+				.put("environment", environment)
+				.put("config", new JSONObject(mConfig))
+				.put("results", results)
+				.put("intervals", intervals);
+
+		Files.write(mOutFile, report.toString(2).getBytes(StandardCharsets.UTF_8));
+		log(results.toString(2));
+		log("Saved to " + mOutFile.toAbsolutePath());
+	}
+
+	private EntityMessage newMessage(ThreadLocalRandom random, long seq) {
+		int pick = random.nextInt(mTotalWeight);
+		MessageType type = mMix[0];
+		for (int i = 0; i < mMix.length; i++) {
+			pick -= mMixWeights[i];
+			if (pick < 0) {
+				type = mMix[i];
+				break;
+			}
+		}
+
+		final EntityMessage msg = new EntityMessage();
+		final int from = random.nextInt(mTokenPool.size() - mAudienceSize + 1);
+		msg.setRegistrationTokenList(mTokenPool.subList(from, from + mAudienceSize));
+		msg.putStringData("type", type.name());
+		msg.putStringData("seq", String.valueOf(seq));
+
+		switch (type) {
+		case NOTIFICATION:
+			msg.setNotification(new Notification.Builder().title("Load test").body("Message " + seq).build());
+			msg.setPriority(Priority.HIGH);
+			break;
+		case LARGE:
+			msg.putStringData("large", mLargeValue);
+			break;
+		default:
+		}
+		return msg;
+	}
+
+	private class Worker extends Thread {
+
+		private final FcmClient mClient;
+
+		// guarded by this
+		private final LatencyHistogram mInterval = new LatencyHistogram();
+
+		Worker(FcmClient client) {
+			mClient = client;
+		}
+
+		@Override
+		public void run() {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			final int[] failures = new int[1];
+			boolean loggedException = false;
+
+			for (long seq = 0; mRunning; seq++) {
+				final EntityMessage msg = newMessage(random, seq);
+
+				final long startNanos = System.nanoTime();
+				FcmResponse res;
+				try {
+					res = mClient.pushToEntities(msg);
+				} catch (RuntimeException e) {
+					// keep the load up and count it as an error, log only the
+					// first one of each worker to keep the output readable
+					if (!loggedException) {
+						loggedException = true;
+						log(getName() + " failed to push: " + e);
+					}
+					res = null;
+				}
+				failures[0] = 0;
+				if (res != null && res.isEnabled()) {
+					res.forEachFailure(new FcmResponse.FailureVisitor() {
+						@Override
+						public void onFailure(int index, String error) {
+							failures[0]++;
+						}
+					});
+				}
+				final long latencyNanos = System.nanoTime() - startNanos;
+
+				if (!mMeasuring) {
+					continue;
+				}
+				synchronized (this) {
+					mInterval.record(latencyNanos);
+				}
+				mMessages.increment();
+				mTokens.add(msg.getRegistrationTokenCount());
+				mFailures.add(failures[0]);
+				if (res == null || !res.isEnabled()) {
+					mErrors.increment();
+				}
+			}
+		}
+
+		synchronized void drainInterval(LatencyHistogram histogram) {
+			histogram.add(mInterval);
+			mInterval.clear();
+		}
+
+		synchronized void clearHistograms() {
+			mInterval.clear();
+		}
+	}
+
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 10) / 10.0;
+	}
+
+	private static void log(String message) {
+		System.out.println(message);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local endpoint that answers like FCM<br>
+ * <p>
+ * Each token fails with NotRegistered or gets a canonical registration id at
+ * the configured ratios. The response is delayed by the configured latency
+ * to simulate the network and the FCM server.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class StubServer {
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+
+	private final double mFailureRatio;
+	private final double mCanonicalIdRatio;
+	private final long mLatencyMicros;
+
+	/**
+	 * 
+	 * @param threads
+	 *            number of threads handling requests
+	 * @param latencyMicros
+	 *            delay before responding
+	 * @param failureRatio
+	 *            ratio of tokens that fail with NotRegistered
+	 * @param canonicalIdRatio
+	 *            ratio of tokens that get a canonical registration id
+	 * @throws IOException
+	 */
+	public StubServer(int threads, long latencyMicros, double failureRatio, double canonicalIdRatio) throws IOException {
+		mLatencyMicros = latencyMicros;
+		mFailureRatio = failureRatio;
+		mCanonicalIdRatio = canonicalIdRatio;
+
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		mExecutor = Executors.newFixedThreadPool(threads);
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/fcm/send", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange);
+			}
+		});
+	}
+
+	public void start() {
+		mServer.start();
+	}
+
+	public void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/fcm/send";
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		final byte[] requestBody = readFully(exchange.getRequestBody());
+
+		final int numOfTokens = new JSONObject(new String(requestBody, StandardCharsets.UTF_8)).getJSONArray("registration_ids").length();
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final StringBuilder results = new StringBuilder(numOfTokens * 32);
+		int success = 0;
+		int failure = 0;
+		int canonicalIds = 0;
+		for (int i = 0; i < numOfTokens; i++) {
+			if (i > 0) {
+				results.append(',');
+			}
+			if (random.nextDouble() < mFailureRatio) {
+				results.append("{\"error\":\"NotRegistered\"}");
+				failure++;
+			} else if (random.nextDouble() < mCanonicalIdRatio) {
+				results.append("{\"message_id\":\"0:").append(i).append("\",\"registration_id\":\"canonical-").append(i).append("\"}");
+				success++;
+				canonicalIds++;
+			} else {
+				results.append("{\"message_id\":\"0:").append(i).append("\"}");
+				success++;
+			}
+		}
+
+		final String responseText = "{\"multicast_id\":" + random.nextLong(Long.MAX_VALUE) + ",\"success\":" + success + ",\"failure\":" + failure + ",\"canonical_ids\":"
+				+ canonicalIds + ",\"results\":[" + results + "]}";
+		final byte[] body = responseText.getBytes(StandardCharsets.UTF_8);
+
+		if (mLatencyMicros > 0) {
+			try {
+				TimeUnit.MICROSECONDS.sleep(mLatencyMicros);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		final OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		for (int len; (len = is.read(buf)) > 0;) {
+			baos.write(buf, 0, len);
+		}
+		return baos.toByteArray();
+	}
+}
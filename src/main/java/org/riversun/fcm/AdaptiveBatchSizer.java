@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.FcmResponse.FailureVisitor;
+import org.riversun.fcm.model.RegistrationTokenSet;
+
+/**
+ * Adjusts number of tokens per multicast request from the observed responses
+ * (additive increase, multiplicative decrease)<br>
+ * <p>
+ * The batch size starts at the lower bound and grows by a step for each
+ * full-sized batch that succeeds within the target latency. It is halved when
+ * a request fails or the ratio of failed results exceeds the limit, and cut by
+ * a quarter when a response is slower than the target. Results for invalid
+ * tokens (NotRegistered, InvalidRegistration) say nothing about the health of
+ * FCM and are not counted as failures.
+ * <p>
+ * Responses of batches bigger than the current size were sent before a
+ * decrease, so they do not shrink it again.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class AdaptiveBatchSizer {
+
+	private static final double FAILURE_DECREASE_FACTOR = 0.5;
+	private static final double LATENCY_DECREASE_FACTOR = 0.75;
+
+	// steps from the lower bound to the upper bound
+	private static final int STEPS = 10;
+
+	private final int mMinBatchSize;
+	private final int mMaxBatchSize;
+	private final long mTargetLatencyNanos;
+	private final double mMaxFailureRatio;
+	private final int mStep;
+
+	private volatile int mBatchSize;
+
+	/**
+	 * Sizer between 100 and {@link RegistrationTokenSet#MAX_TOKENS_PER_REQUEST}
+	 * tokens targeting 1 second and 5% failed results
+	 */
+	public AdaptiveBatchSizer() {
+		this(100, RegistrationTokenSet.MAX_TOKENS_PER_REQUEST, 1000, 0.05);
+	}
+
+	/**
+	 * 
+	 * @param minBatchSize
+	 * @param maxBatchSize
+	 *            up to {@link RegistrationTokenSet#MAX_TOKENS_PER_REQUEST}
+	 * @param targetLatencyMillis
+	 *            responses slower than this shrink the batch
+	 * @param maxFailureRatio
+	 *            ratio of failed results in a response that halves the batch
+	 */
+	public AdaptiveBatchSizer(int minBatchSize, int maxBatchSize, long targetLatencyMillis, double maxFailureRatio) {
+		if (minBatchSize <= 0 || minBatchSize > maxBatchSize) {
+			throw new IllegalArgumentException("minBatchSize must be positive and not greater than maxBatchSize");
+		}
+		if (maxBatchSize > RegistrationTokenSet.MAX_TOKENS_PER_REQUEST) {
+			throw new IllegalArgumentException("maxBatchSize must not be greater than " + RegistrationTokenSet.MAX_TOKENS_PER_REQUEST);
+		}
+		if (targetLatencyMillis <= 0) {
+			throw new IllegalArgumentException("targetLatencyMillis must be positive");
+		}
+		if (maxFailureRatio < 0 || maxFailureRatio > 1) {
+			throw new IllegalArgumentException("maxFailureRatio must be between 0 and 1");
+		}
+		mMinBatchSize = minBatchSize;
+		mMaxBatchSize = maxBatchSize;
+		mTargetLatencyNanos = targetLatencyMillis * 1000000L;
+		mMaxFailureRatio = maxFailureRatio;
+		mStep = Math.max(1, (maxBatchSize - minBatchSize) / STEPS);
+		mBatchSize = minBatchSize;
+	}
+
+	/**
+	 * Returns current number of tokens per request
+	 * 
+	 * @return
+	 */
+	public int getBatchSize() {
+		return mBatchSize;
+	}
+
+	public int getMinBatchSize() {
+		return mMinBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return mMaxBatchSize;
+	}
+
+	/**
+	 * Adjust the batch size by the response of a batch
+	 * 
+	 * @param batchSize
+	 *            number of tokens sent in the request
+	 * @param res
+	 *            response, or null if the request could not be made
+	 */
+	public void record(int batchSize, FcmResponse res) {
+		if (batchSize <= 0) {
+			return;
+		}
+
+		if (res == null || !res.isEnabled()) {
+			decrease(batchSize, FAILURE_DECREASE_FACTOR);
+			return;
+		}
+
+		final int[] numOfFailures = new int[1];
+		res.forEachFailure(new FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				if (!"NotRegistered".equals(error) && !"InvalidRegistration".equals(error)) {
+					numOfFailures[0]++;
+				}
+			}
+		});
+
+		if (numOfFailures[0] > batchSize * mMaxFailureRatio) {
+			decrease(batchSize, FAILURE_DECREASE_FACTOR);
+		} else if (res.getTiming() != null && res.getTiming().getTotalNanos() > mTargetLatencyNanos) {
+			decrease(batchSize, LATENCY_DECREASE_FACTOR);
+		} else {
+			increase(batchSize);
+		}
+	}
+
+	private synchronized void decrease(int batchSize, double factor) {
+		if (batchSize <= mBatchSize) {
+			mBatchSize = Math.max(mMinBatchSize, (int) (mBatchSize * factor));
+		}
+	}
+
+	private synchronized void increase(int batchSize) {
+		// a partial batch at the end of an audience tells nothing about
+		// bigger batches
+		if (batchSize >= mBatchSize) {
+			mBatchSize = Math.min(mMaxBatchSize, mBatchSize + mStep);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AdaptiveBatchSizer [batchSize=" + mBatchSize + ", min=" + mMinBatchSize + ", max=" + mMaxBatchSize + "]";
+	}
+}
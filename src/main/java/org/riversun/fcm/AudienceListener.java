@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.util.List;
+
+import org.riversun.fcm.model.FcmResponse;
+
+/**
+ * Receives the response of each chunk sent by
+ * {@link FcmClient#pushToAudience(org.riversun.fcm.model.EntityMessage, java.util.Iterator, AudienceListener)}
+ * or {@link DelayedDeliveryQueue}
+ * <p>
+ * Called from the sending threads, so implementations must be thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public interface AudienceListener {
+
+	/**
+	 * Called when a chunk has been sent
+	 * 
+	 * @param registrationTokens
+	 *            tokens of the chunk in the same order as the results in the
+	 *            response. Tokens dropped as duplicates by the dedup cache
+	 *            are not included (see
+	 *            {@link FcmResponse#getSuppressedCount()}).
+	 * @param response
+	 *            response from FCM, or null if the request could not be made
+	 */
+	public void onChunkSent(List<String> registrationTokens, FcmResponse response);
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.riversun.fcm.FcmClient.PreparedRequest;
+import org.riversun.fcm.FcmClient.SenderThreadFactory;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.FcmResponse.CanonicalIdVisitor;
+import org.riversun.fcm.model.FcmResponse.FailureVisitor;
+
+/**
+ * Sends a message to a fixed audience and keeps track of the progress, so
+ * that the campaign can be resumed after a crash<br>
+ * <p>
+ * The state is kept in three bitmaps indexed by the position of the token in
+ * the audience list: sent, failed and invalid (NotRegistered or
+ * InvalidRegistration, also failed). Tokens in none of them are pending.
+ * Tokens of chunks that could not be sent and tokens with retryable errors
+ * (Unavailable, InternalServerError) stay pending. Tokens dropped by the
+ * dedup cache of the client (see {@link FcmClient#setDedupCache(DedupCache)})
+ * are counted as sent.
+ * <p>
+ * While running, the state is saved to the checkpoint file in the background
+ * at a fixed interval and when the run ends. Creating a campaign with an
+ * existing checkpoint file restores the state, and {@link #run()} sends only
+ * to the pending tokens. The audience list must be the same in the same
+ * order, which is verified by a fingerprint. Tokens of chunks in flight at
+ * a crash are still pending in the checkpoint, so they are sent again.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class Campaign {
+
+	private static final Logger LOGGER = Logger.getLogger(Campaign.class.getName());
+
+	private static final int CHECKPOINT_MAGIC = 0x46434d43;
+	private static final int CHECKPOINT_VERSION = 1;
+
+	private static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 5000;
+
+	private final FcmClient mClient;
+	private final EntityMessage mMsg;
+	private final List<String> mRegistrationTokens;
+	private final Path mCheckpointFile;
+	private final long mFingerprint;
+	private final Object mCheckpointLock = new Object();
+
+	// guarded by this
+	private final BitSet mSent;
+	private final BitSet mFailed;
+	private final BitSet mInvalid;
+	private int mSentCount;
+	private int mFailedCount;
+	private int mInvalidCount;
+	private long mCanonicalIds;
+	private boolean mDirty;
+	private boolean mRunning;
+
+	private volatile long mCheckpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+
+	/**
+	 * 
+	 * @param client
+	 * @param msg
+	 *            message used as a template, must not be modified during
+	 *            sending. Registration tokens registered in the message itself
+	 *            are ignored.
+	 * @param registrationTokens
+	 *            audience, must be the same list in the same order when
+	 *            resumed
+	 * @param checkpointFile
+	 *            file to save the progress, restored if it exists
+	 * @throws IOException
+	 *             if the checkpoint file cannot be read or belongs to another
+	 *             audience
+	 * @throws IllegalStateException
+	 *             if the payload of the message exceeds the FCM limit
+	 */
+	public Campaign(FcmClient client, EntityMessage msg, List<String> registrationTokens, Path checkpointFile) throws IOException {
+		if (!msg.fitsLimit()) {
+			throw new IllegalStateException("payload is " + msg.getPayloadSize() + " bytes, exceeds the limit of " + EntityMessage.MAX_PAYLOAD_SIZE + " bytes");
+		}
+		mClient = client;
+		mMsg = msg;
+		mRegistrationTokens = registrationTokens;
+		mCheckpointFile = checkpointFile;
+		mFingerprint = fingerprint(registrationTokens);
+
+		final int numOfTokens = registrationTokens.size();
+		mSent = new BitSet(numOfTokens);
+		mFailed = new BitSet(numOfTokens);
+		mInvalid = new BitSet(numOfTokens);
+
+		if (Files.exists(checkpointFile)) {
+			restore();
+		}
+	}
+
+	/**
+	 * Set interval to save the progress while running
+	 * 
+	 * @param checkpointIntervalMillis
+	 */
+	public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+		if (checkpointIntervalMillis <= 0) {
+			throw new IllegalArgumentException("checkpointIntervalMillis must be positive");
+		}
+		mCheckpointIntervalMillis = checkpointIntervalMillis;
+	}
+
+	/**
+	 * Send the message to the pending tokens
+	 * <p>
+	 * Chunks of token positions of the batch size of the client (see
+	 * {@link FcmClient#setAdaptiveBatchSizer(AdaptiveBatchSizer)}) are sent concurrently up to
+	 * {@link FcmClient#setMaxInFlightRequests(int)}. Chunks without pending
+	 * tokens are skipped. Call again to retry tokens left pending.
+	 * <p>
+	 * This method blocks until all chunks have been sent and the progress has
+	 * been saved.
+	 * 
+	 * @return progress after the run
+	 * @throws IOException
+	 *             if the progress could not be saved at the end
+	 */
+	public Progress run() throws IOException {
+		synchronized (this) {
+			if (mRunning) {
+				throw new IllegalStateException("campaign is already running");
+			}
+			mRunning = true;
+		}
+
+		final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "fcm-campaign-checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long interval = mCheckpointIntervalMillis;
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to save checkpoint " + mCheckpointFile, e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+
+		final int maxInFlight = mClient.getMaxInFlightRequests();
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, new SenderThreadFactory());
+
+		boolean completed = false;
+		try {
+			final int numOfTokens = mRegistrationTokens.size();
+			for (int from = 0; from < numOfTokens;) {
+
+				final int to = Math.min(from + mClient.getBatchSize(), numOfTokens);
+				final int[] indexes = pendingIndexes(from, to);
+				from = to;
+				if (indexes.length == 0) {
+					continue;
+				}
+
+				final List<String> chunk = new ArrayList<String>(indexes.length);
+				for (int index : indexes) {
+					chunk.add(mRegistrationTokens.get(index));
+				}
+				final PreparedRequest request = mClient.prepare(mMsg, chunk);
+
+				inFlight.acquireUninterruptibly();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							// retryable tokens stay pending for the next run
+							final FcmResponse res = mClient.send(request, false);
+							mClient.recordBatch(request.registrationTokens.size(), res);
+							apply(selectSent(indexes, chunk, request.registrationTokens), res);
+						} catch (RuntimeException e) {
+							LOGGER.log(Level.WARNING, "Error occurred while sending chunk.", e);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+
+			completed = true;
+		} finally {
+			// wait for all chunks, also if the loop failed, so that the results
+			// of the chunks in flight are saved
+			inFlight.acquireUninterruptibly(maxInFlight);
+			inFlight.release(maxInFlight);
+
+			executor.shutdown();
+			checkpointer.shutdownNow();
+			synchronized (this) {
+				mRunning = false;
+			}
+
+			if (completed) {
+				checkpoint();
+			} else {
+				// do not hide the exception of the loop
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to save checkpoint " + mCheckpointFile, e);
+				}
+			}
+		}
+
+		return getProgress();
+	}
+
+	/**
+	 * Save the progress to the checkpoint file if changed since the last save
+	 * <p>
+	 * The checkpoint is written to a temporary file in the same directory and
+	 * then moved to the file, so the file is never left half-written.
+	 * 
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		final long[] sent;
+		final long[] failed;
+		final long[] invalid;
+		final long canonicalIds;
+		synchronized (this) {
+			if (!mDirty) {
+				return;
+			}
+			sent = mSent.toLongArray();
+			failed = mFailed.toLongArray();
+			invalid = mInvalid.toLongArray();
+			canonicalIds = mCanonicalIds;
+			mDirty = false;
+		}
+
+		boolean saved = false;
+		try {
+			synchronized (mCheckpointLock) {
+				final Path dir = mCheckpointFile.toAbsolutePath().getParent();
+				final Path tmpFile = Files.createTempFile(dir, mCheckpointFile.getFileName().toString(), ".tmp");
+				try {
+					final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)));
+					try {
+						dos.writeInt(CHECKPOINT_MAGIC);
+						dos.writeInt(CHECKPOINT_VERSION);
+						dos.writeInt(mRegistrationTokens.size());
+						dos.writeLong(mFingerprint);
+						dos.writeLong(canonicalIds);
+						writeBits(dos, sent);
+						writeBits(dos, failed);
+						writeBits(dos, invalid);
+					} finally {
+						dos.close();
+					}
+					Files.move(tmpFile, mCheckpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(tmpFile);
+				}
+			}
+			saved = true;
+		} finally {
+			if (!saved) {
+				// try again next time
+				synchronized (this) {
+					mDirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the progress
+	 * 
+	 * @return
+	 */
+	public synchronized Progress getProgress() {
+		return new Progress(mRegistrationTokens.size(), mSentCount, mFailedCount, mInvalidCount, mCanonicalIds);
+	}
+
+	/**
+	 * Returns true if the token at the position was sent successfully
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized boolean isSent(int index) {
+		return mSent.get(index);
+	}
+
+	/**
+	 * Returns true if the token at the position failed with an error that is
+	 * not retryable
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized boolean isFailed(int index) {
+		return mFailed.get(index);
+	}
+
+	/**
+	 * Returns true if the token at the position was reported as NotRegistered
+	 * or InvalidRegistration
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized boolean isInvalid(int index) {
+		return mInvalid.get(index);
+	}
+
+	/**
+	 * Progress of a campaign
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public static class Progress {
+
+		private final int mTotal;
+		private final int mSent;
+		private final int mFailed;
+		private final int mInvalid;
+		private final long mCanonicalIds;
+
+		Progress(int total, int sent, int failed, int invalid, long canonicalIds) {
+			mTotal = total;
+			mSent = sent;
+			mFailed = failed;
+			mInvalid = invalid;
+			mCanonicalIds = canonicalIds;
+		}
+
+		public int getTotal() {
+			return mTotal;
+		}
+
+		public int getSent() {
+			return mSent;
+		}
+
+		/**
+		 * Returns number of tokens that failed, including invalid tokens
+		 * 
+		 * @return
+		 */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		public int getInvalid() {
+			return mInvalid;
+		}
+
+		public int getPending() {
+			return mTotal - mSent - mFailed;
+		}
+
+		/**
+		 * Returns number of results with a canonical registration token
+		 * 
+		 * @return
+		 */
+		public long getCanonicalIds() {
+			return mCanonicalIds;
+		}
+
+		public boolean isCompleted() {
+			return getPending() == 0;
+		}
+
+		public double getSentPercent() {
+			return percent(mSent);
+		}
+
+		public double getFailedPercent() {
+			return percent(mFailed);
+		}
+
+		public double getInvalidPercent() {
+			return percent(mInvalid);
+		}
+
+		private double percent(int count) {
+			return mTotal == 0 ? 0 : 100.0 * count / mTotal;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f%% sent, %.1f%% failed, %.1f%% invalid, %d pending of %d", getSentPercent(), getFailedPercent(), getInvalidPercent(), getPending(),
+					mTotal);
+		}
+	}
+
+	private synchronized int[] pendingIndexes(int from, int to) {
+		final int[] indexes = new int[to - from];
+		int count = 0;
+		for (int index = from; index < to; index++) {
+			if (!mSent.get(index) && !mFailed.get(index)) {
+				indexes[count++] = index;
+			}
+		}
+		return count == indexes.length ? indexes : Arrays.copyOf(indexes, count);
+	}
+
+	/**
+	 * Record the response of the chunk of the token positions
+	 */
+	/**
+	 * Returns positions of the tokens sent by the request, and records the
+	 * tokens dropped as duplicates by the dedup cache as sent, because they
+	 * already received the idempotency key
+	 */
+	private int[] selectSent(int[] indexes, List<String> chunk, List<String> registrationTokens) {
+		if (registrationTokens.size() == indexes.length) {
+			return indexes;
+		}
+
+		// the request tokens are the chunk without the dropped ones, in order
+		final int[] sentIndexes = new int[registrationTokens.size()];
+		int numOfSent = 0;
+		synchronized (this) {
+			for (int i = 0; i < indexes.length; i++) {
+				final int index = indexes[i];
+				if (numOfSent < sentIndexes.length && chunk.get(i).equals(registrationTokens.get(numOfSent))) {
+					sentIndexes[numOfSent++] = index;
+				} else if (!mSent.get(index) && !mFailed.get(index)) {
+					mSent.set(index);
+					mSentCount++;
+				}
+			}
+			mDirty = true;
+		}
+		return sentIndexes;
+	}
+
+	private void apply(final int[] indexes, FcmResponse res) {
+		if (res == null || !res.isEnabled()) {
+			// left pending to be sent again
+			return;
+		}
+
+		// results not in the failures are successes
+		final int numOfResults = Math.min(res.getResultCount(), indexes.length);
+		final BitSet failures = new BitSet(numOfResults);
+		final BitSet retryables = new BitSet(numOfResults);
+		final BitSet invalids = new BitSet(numOfResults);
+		res.forEachFailure(new FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				if (index >= numOfResults) {
+					return;
+				}
+				failures.set(index);
+				if ("Unavailable".equals(error) || "InternalServerError".equals(error)) {
+					retryables.set(index);
+				} else if ("NotRegistered".equals(error) || "InvalidRegistration".equals(error)) {
+					invalids.set(index);
+				}
+			}
+		});
+		final long[] canonicalIds = new long[1];
+		res.forEachCanonicalId(new CanonicalIdVisitor() {
+			@Override
+			public void onCanonicalId(int index, String registrationId) {
+				canonicalIds[0]++;
+			}
+		});
+
+		synchronized (this) {
+			for (int i = 0; i < numOfResults; i++) {
+				final int index = indexes[i];
+				if (mSent.get(index) || mFailed.get(index)) {
+					continue;
+				}
+				if (!failures.get(i)) {
+					mSent.set(index);
+					mSentCount++;
+				} else if (!retryables.get(i)) {
+					mFailed.set(index);
+					mFailedCount++;
+					if (invalids.get(i)) {
+						mInvalid.set(index);
+						mInvalidCount++;
+					}
+				}
+			}
+			mCanonicalIds += canonicalIds[0];
+			mDirty = true;
+		}
+	}
+
+	private void restore() throws IOException {
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(mCheckpointFile)));
+		try {
+			if (dis.readInt() != CHECKPOINT_MAGIC) {
+				throw new IOException(mCheckpointFile + " is not a campaign checkpoint");
+			}
+			final int version = dis.readInt();
+			if (version != CHECKPOINT_VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version);
+			}
+			if (dis.readInt() != mRegistrationTokens.size() || dis.readLong() != mFingerprint) {
+				throw new IOException(mCheckpointFile + " is a checkpoint of another audience");
+			}
+			mCanonicalIds = dis.readLong();
+			mSent.or(readBits(dis));
+			mFailed.or(readBits(dis));
+			mInvalid.or(readBits(dis));
+		} finally {
+			dis.close();
+		}
+		mSentCount = mSent.cardinality();
+		mFailedCount = mFailed.cardinality();
+		mInvalidCount = mInvalid.cardinality();
+	}
+
+	private static void writeBits(DataOutputStream dos, long[] words) throws IOException {
+		dos.writeInt(words.length);
+		for (long word : words) {
+			dos.writeLong(word);
+		}
+	}
+
+	private static BitSet readBits(DataInputStream dis) throws IOException {
+		final long[] words = new long[dis.readInt()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = dis.readLong();
+		}
+		return BitSet.valueOf(words);
+	}
+
+	/**
+	 * 64-bit FNV-1a over the UTF-8 bytes of the tokens in order, each followed
+	 * by a separator
+	 */
+	private static long fingerprint(List<String> registrationTokens) {
+		long hash = 0xcbf29ce484222325L;
+		for (String registrationToken : registrationTokens) {
+			for (byte b : registrationToken.getBytes(StandardCharsets.UTF_8)) {
+				hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+			}
+			hash = (hash ^ 0xff) * 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import org.json.JSONObject;
+import org.riversun.fcm.model.FcmResponse;
+
+/**
+ * Request that could not be delivered to FCM
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class DeadLetter {
+
+	private final long mTimestamp;
+	private final String mReason;
+	private final String mRequestText;
+	private final int mHttpResponseCode;
+	private final String mResponseText;
+	private final FcmResponse mResponse;
+
+	/**
+	 * 
+	 * @param timestamp
+	 *            milliseconds since epoch
+	 * @param reason
+	 * @param requestText
+	 *            JSON text of the request
+	 * @param response
+	 *            response from FCM, can be null
+	 */
+	public DeadLetter(long timestamp, String reason, String requestText, FcmResponse response) {
+		mTimestamp = timestamp;
+		mReason = reason;
+		mRequestText = requestText;
+		mResponse = response;
+		if (response != null) {
+			mHttpResponseCode = response.getHttpResponseCode();
+			mResponseText = response.getJson() != null ? response.getJson().toString() : response.getHttpErroMessage();
+		} else {
+			mHttpResponseCode = -1;
+			mResponseText = null;
+		}
+	}
+
+	private DeadLetter(long timestamp, String reason, String requestText, int httpResponseCode, String responseText) {
+		mTimestamp = timestamp;
+		mReason = reason;
+		mRequestText = requestText;
+		mHttpResponseCode = httpResponseCode;
+		mResponseText = responseText;
+		mResponse = null;
+	}
+
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	/**
+	 * Returns why the request failed
+	 * 
+	 * @return
+	 */
+	public String getReason() {
+		return mReason;
+	}
+
+	/**
+	 * Returns JSON text of the request
+	 * 
+	 * @return
+	 */
+	public String getRequestText() {
+		return mRequestText;
+	}
+
+	/**
+	 * Returns HTTP response code, or -1 if no response was received
+	 * 
+	 * @return
+	 */
+	public int getHttpResponseCode() {
+		return mHttpResponseCode;
+	}
+
+	/**
+	 * Returns response body, can be null
+	 * 
+	 * @return
+	 */
+	public String getResponseText() {
+		return mResponseText;
+	}
+
+	/**
+	 * Returns response from FCM, or null if no response was received or the
+	 * dead letter was read from a file
+	 * 
+	 * @return
+	 */
+	public FcmResponse getResponse() {
+		return mResponse;
+	}
+
+	/**
+	 * Generates single line JSON text
+	 * 
+	 * @return
+	 */
+	public String toJson() {
+		final JSONObject json = new JSONObject();
+		json.put("timestamp", mTimestamp);
+		json.put("reason", mReason);
+		json.put("http_response_code", mHttpResponseCode);
+		if (mResponseText != null) {
+			json.put("response", mResponseText);
+		}
+		json.put("request", mRequestText);
+		return json.toString();
+	}
+
+	/**
+	 * Parse JSON text generated by {@link #toJson()}
+	 * 
+	 * @param jsonText
+	 * @return
+	 */
+	public static DeadLetter fromJson(String jsonText) {
+		final JSONObject json = new JSONObject(jsonText);
+		return new DeadLetter(json.getLong("timestamp"), json.optString("reason", null), json.getString("request"), json.optInt("http_response_code", -1),
+				json.optString("response", null));
+	}
+
+	@Override
+	public String toString() {
+		return "DeadLetter [timestamp=" + mTimestamp + ", reason=" + mReason + ", httpResponseCode=" + mHttpResponseCode + ", responseText=" + mResponseText + ", requestText="
+				+ mRequestText + "]";
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.riversun.fcm.model.FcmResponse;
+
+/**
+ * Sends dead letters again through the client at a controlled rate<br>
+ * <p>
+ * Requests that fail again are passed to the dead letter sink of the client.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class DeadLetterReplayer {
+
+	private final FcmClient mClient;
+	private final long mIntervalNanos;
+
+	/**
+	 * 
+	 * @param client
+	 * @param requestsPerSecond
+	 *            max number of requests per second
+	 */
+	public DeadLetterReplayer(FcmClient client, double requestsPerSecond) {
+		if (requestsPerSecond <= 0) {
+			throw new IllegalArgumentException("requestsPerSecond must be positive");
+		}
+		mClient = client;
+		mIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+	}
+
+	/**
+	 * Send dead letters again
+	 * <p>
+	 * This method blocks until all dead letters are sent.
+	 * 
+	 * @param deadLetters
+	 * @return number of dead letters sent successfully
+	 * @throws InterruptedException
+	 */
+	public int replay(Iterator<DeadLetter> deadLetters) throws InterruptedException {
+		int numOfSucceeded = 0;
+		long nextNanos = System.nanoTime();
+
+		while (deadLetters.hasNext()) {
+			final DeadLetter deadLetter = deadLetters.next();
+
+			final long waitNanos = nextNanos - System.nanoTime();
+			if (waitNanos > 0) {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+			nextNanos = Math.max(nextNanos, System.nanoTime() - mIntervalNanos) + mIntervalNanos;
+
+			final FcmResponse res = mClient.pushNotifyText(deadLetter.getRequestText());
+			if (res != null && res.isEnabled()) {
+				numOfSucceeded++;
+			}
+		}
+		return numOfSucceeded;
+	}
+
+	/**
+	 * Send dead letters written by {@link FileDeadLetterSink} again
+	 * 
+	 * @param deadLetterFile
+	 *            must not be the file the client is currently writing dead
+	 *            letters to
+	 * @return number of dead letters sent successfully
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int replay(Path deadLetterFile) throws IOException, InterruptedException {
+
+		final DeadLetterSink sink = mClient.getDeadLetterSink();
+		if (sink instanceof FileDeadLetterSink && Files.exists(deadLetterFile)
+				&& Files.isSameFile(((FileDeadLetterSink) sink).getFile(), deadLetterFile)) {
+			throw new IllegalArgumentException("cannot replay " + deadLetterFile + " while writing dead letters to it");
+		}
+
+		final BufferedReader br = Files.newBufferedReader(deadLetterFile, StandardCharsets.UTF_8);
+		try {
+			return replay(FileDeadLetterSink.iterator(br));
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		} finally {
+			br.close();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers (idempotency key, registration token) pairs for a while to drop
+ * duplicated pushes<br>
+ * <p>
+ * Pairs are kept as 64-bit fingerprints in time buckets (generations). The
+ * oldest generation is dropped as time goes by, so a pair is remembered at
+ * least for the TTL and at most for TTL * {@value #GENERATIONS} / (
+ * {@value #GENERATIONS} - 1).
+ * <p>
+ * Memory is bounded by <code>maxEntries</code>. If a generation gets full
+ * before its time is over, generations are rotated early and the oldest
+ * pairs are forgotten before the TTL.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class DedupCache {
+
+	private static final int GENERATIONS = 4;
+
+	private final long mBucketMillis;
+	private final int mMaxEntriesPerGeneration;
+
+	// [0] is the current generation
+	private volatile Set<Long>[] mGenerations;
+	private volatile long mCurrentBucket;
+
+	/**
+	 * 
+	 * @param ttlMillis
+	 *            how long pairs are remembered
+	 * @param maxEntries
+	 *            max number of pairs to remember
+	 */
+	public DedupCache(long ttlMillis, int maxEntries) {
+		if (ttlMillis <= 0) {
+			throw new IllegalArgumentException("ttlMillis must be positive");
+		}
+		if (maxEntries < GENERATIONS) {
+			throw new IllegalArgumentException("maxEntries must be equal to or greater than " + GENERATIONS);
+		}
+		mBucketMillis = Math.max(1, ttlMillis / (GENERATIONS - 1));
+		mMaxEntriesPerGeneration = maxEntries / GENERATIONS;
+		mGenerations = newGenerations();
+		mCurrentBucket = System.currentTimeMillis() / mBucketMillis;
+	}
+
+	/**
+	 * Remember the pair if it is not remembered yet
+	 * 
+	 * @param idempotencyKey
+	 * @param registrationToken
+	 * @return true if the pair is new, false if it is a duplicate
+	 */
+	public boolean markIfAbsent(String idempotencyKey, String registrationToken) {
+		rotateIfNeeded();
+		final Set<Long>[] generations = mGenerations;
+		final Long fingerprint = fingerprint(idempotencyKey, registrationToken);
+
+		for (int i = 1; i < generations.length; i++) {
+			if (generations[i].contains(fingerprint)) {
+				return false;
+			}
+		}
+		return generations[0].add(fingerprint);
+	}
+
+	/**
+	 * Forget the pair so that it can be sent again
+	 * 
+	 * @param idempotencyKey
+	 * @param registrationToken
+	 */
+	public void unmark(String idempotencyKey, String registrationToken) {
+		final Long fingerprint = fingerprint(idempotencyKey, registrationToken);
+		for (Set<Long> generation : mGenerations) {
+			generation.remove(fingerprint);
+		}
+	}
+
+	/**
+	 * Returns number of remembered pairs
+	 * 
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (Set<Long> generation : mGenerations) {
+			size += generation.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Forget all pairs
+	 */
+	public synchronized void clear() {
+		mGenerations = newGenerations();
+	}
+
+	private void rotateIfNeeded() {
+		final long bucket = System.currentTimeMillis() / mBucketMillis;
+		Set<Long>[] generations = mGenerations;
+
+		if (bucket == mCurrentBucket && generations[0].size() < mMaxEntriesPerGeneration) {
+			return;
+		}
+
+		synchronized (this) {
+			generations = mGenerations;
+			final long elapsedBuckets = bucket - mCurrentBucket;
+
+			if (elapsedBuckets > 0 || generations[0].size() >= mMaxEntriesPerGeneration) {
+				final int shift = (int) Math.min(GENERATIONS, Math.max(1, elapsedBuckets));
+				final Set<Long>[] rotated = newGenerations();
+				for (int i = shift; i < GENERATIONS; i++) {
+					rotated[i] = generations[i - shift];
+				}
+				mGenerations = rotated;
+				mCurrentBucket = Math.max(bucket, mCurrentBucket);
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Set<Long>[] newGenerations() {
+		final Set<Long>[] generations = new Set[GENERATIONS];
+		for (int i = 0; i < GENERATIONS; i++) {
+			generations[i] = ConcurrentHashMap.<Long> newKeySet();
+		}
+		return generations;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the pair
+	 */
+	private static long fingerprint(String idempotencyKey, String registrationToken) {
+		long h = 0xcbf29ce484222325L;
+		h = fnv(h, idempotencyKey);
+		h = (h ^ 0xffff) * 0x100000001b3L;
+		h = fnv(h, registrationToken);
+		return h;
+	}
+
+	private static long fnv(long h, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			h = (h ^ text.charAt(i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.riversun.fcm.FcmClient.PreparedRequest;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.RegistrationTokenSet;
+import org.riversun.fcm.util.HierarchicalTimingWheel;
+
+/**
+ * Queue to deliver messages at a future time<br>
+ * <p>
+ * Deliveries are held in a {@link HierarchicalTimingWheel}, so scheduling is
+ * O(1) even with millions of pending deliveries. Tokens of the same message
+ * that become due together are merged into multicast requests of up to
+ * {@link RegistrationTokenSet#MAX_TOKENS_PER_REQUEST} tokens, and the requests
+ * are released no faster than the configured rate.
+ * <p>
+ * Messages are identified by instance. Schedule the same
+ * {@link EntityMessage} instance for tokens that should be merged, and do
+ * not modify it after scheduling.
+ * 
+ * <pre>
+ * DelayedDeliveryQueue queue = new DelayedDeliveryQueue(client, 1000, 50, listener);
+ * queue.start();
+ * // 9am in the user's time zone
+ * queue.scheduleAtLocalTime(msg, token, LocalTime.of(9, 0), ZoneId.of("Asia/Tokyo"));
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class DelayedDeliveryQueue implements ManagedQueue {
+
+	private static final Logger LOGGER = Logger.getLogger(DelayedDeliveryQueue.class.getName());
+
+	private static class Delivery {
+		final EntityMessage msg;
+		final String registrationToken;
+
+		Delivery(EntityMessage msg, String registrationToken) {
+			this.msg = msg;
+			this.registrationToken = registrationToken;
+		}
+	}
+
+	private static class Batch {
+		final EntityMessage msg;
+		final List<String> registrationTokens = new ArrayList<String>();
+
+		Batch(EntityMessage msg) {
+			this.msg = msg;
+		}
+	}
+
+	private final FcmClient mClient;
+	private final AudienceListener mListener;
+	private final long mIntervalNanos;
+
+	private final HierarchicalTimingWheel<Delivery> mWheel;
+
+	// batches released from the wheel, waiting for the rate limit
+	private final Deque<Batch> mReleaseQueue = new ArrayDeque<Batch>();
+	private int mReleaseQueueTokens = 0;
+
+	private Thread mThread;
+	private volatile boolean mRunning = false;
+
+	/**
+	 * 
+	 * @param client
+	 * @param tickMillis
+	 *            resolution of delivery time
+	 * @param maxRequestsPerSecond
+	 *            max number of requests sent per second
+	 * @param listener
+	 *            receives responses, can be null
+	 */
+	public DelayedDeliveryQueue(FcmClient client, long tickMillis, double maxRequestsPerSecond, AudienceListener listener) {
+		if (maxRequestsPerSecond <= 0) {
+			throw new IllegalArgumentException("maxRequestsPerSecond must be positive");
+		}
+		mClient = client;
+		mListener = listener;
+		mIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond);
+		mWheel = new HierarchicalTimingWheel<Delivery>(tickMillis, System.currentTimeMillis());
+	}
+
+	/**
+	 * Schedule delivery of the message to the token at the specified time
+	 * 
+	 * @param msg
+	 * @param registrationToken
+	 * @param deliverAtMillis
+	 *            milliseconds since epoch
+	 */
+	public void schedule(EntityMessage msg, String registrationToken, long deliverAtMillis) {
+		final Delivery delivery = new Delivery(msg, registrationToken);
+		synchronized (mWheel) {
+			mWheel.add(deliverAtMillis, delivery);
+		}
+	}
+
+	/**
+	 * Schedule delivery of the message to the token at the specified time
+	 * 
+	 * @param msg
+	 * @param registrationToken
+	 * @param deliverAt
+	 */
+	public void schedule(EntityMessage msg, String registrationToken, Instant deliverAt) {
+		schedule(msg, registrationToken, deliverAt.toEpochMilli());
+	}
+
+	/**
+	 * Schedule delivery of the message to the token at the next occurrence of
+	 * the local time in the time zone
+	 * 
+	 * @param msg
+	 * @param registrationToken
+	 * @param localTime
+	 *            like 9:00
+	 * @param zoneId
+	 *            time zone of the user
+	 * @return time of delivery
+	 */
+	public Instant scheduleAtLocalTime(EntityMessage msg, String registrationToken, LocalTime localTime, ZoneId zoneId) {
+		final ZonedDateTime now = ZonedDateTime.now(zoneId);
+		ZonedDateTime deliverAt = now.with(localTime);
+		if (!deliverAt.isAfter(now)) {
+			deliverAt = now.plusDays(1).with(localTime);
+		}
+		final Instant instant = deliverAt.toInstant();
+		schedule(msg, registrationToken, instant);
+		return instant;
+	}
+
+	/**
+	 * Returns number of deliveries not sent yet
+	 * 
+	 * @return
+	 */
+	public int getPendingCount() {
+		int pending;
+		synchronized (mWheel) {
+			pending = mWheel.size();
+		}
+		synchronized (mReleaseQueue) {
+			pending += mReleaseQueueTokens;
+		}
+		return pending;
+	}
+
+	/**
+	 * Returns number of deliveries not sent yet, a delivery is a token of a
+	 * message
+	 * 
+	 * @return
+	 */
+	@Override
+	public int getPendingTokenCount() {
+		return getPendingCount();
+	}
+
+	/**
+	 * Discard all deliveries not sent yet
+	 * 
+	 * @return number of discarded deliveries
+	 */
+	@Override
+	public int drain() {
+		int drained;
+		synchronized (mWheel) {
+			drained = mWheel.size();
+			mWheel.clear();
+		}
+		synchronized (mReleaseQueue) {
+			drained += mReleaseQueueTokens;
+			mReleaseQueue.clear();
+			mReleaseQueueTokens = 0;
+		}
+		return drained;
+	}
+
+	/**
+	 * Start the delivery thread
+	 * <p>
+	 * While running, the queue is counted in and drained by the
+	 * {@link FcmClientMXBean} of the client.
+	 */
+	public synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "fcm-delayed-delivery");
+		mThread.setDaemon(true);
+		mThread.start();
+		mClient.addManagedQueue(this);
+	}
+
+	/**
+	 * Stop the delivery thread
+	 * <p>
+	 * Pending deliveries are kept and sent after {@link #start()} is called
+	 * again.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!mRunning) {
+			return;
+		}
+		mRunning = false;
+		mClient.removeManagedQueue(this);
+		mThread.interrupt();
+		mThread.join();
+		mThread = null;
+	}
+
+	private void loop() {
+		final long tickNanos = TimeUnit.MILLISECONDS.toNanos(mWheel.getTickMillis());
+		long nextSendNanos = System.nanoTime();
+
+		while (mRunning) {
+			releaseDueDeliveries();
+
+			final Batch batch;
+			synchronized (mReleaseQueue) {
+				batch = mReleaseQueue.pollFirst();
+				if (batch != null) {
+					mReleaseQueueTokens -= batch.registrationTokens.size();
+				}
+			}
+
+			try {
+				if (batch == null) {
+					TimeUnit.NANOSECONDS.sleep(tickNanos);
+					continue;
+				}
+
+				// spread requests evenly
+				final long waitNanos = nextSendNanos - System.nanoTime();
+				if (waitNanos > 0) {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				}
+				nextSendNanos = Math.max(nextSendNanos, System.nanoTime() - mIntervalNanos) + mIntervalNanos;
+
+			} catch (InterruptedException e) {
+				if (batch != null) {
+					synchronized (mReleaseQueue) {
+						mReleaseQueue.addFirst(batch);
+						mReleaseQueueTokens += batch.registrationTokens.size();
+					}
+				}
+				if (!mRunning) {
+					return;
+				}
+				continue;
+			}
+
+			send(batch);
+		}
+	}
+
+	private void releaseDueDeliveries() {
+		final Map<EntityMessage, Batch> batchMap = new IdentityHashMap<EntityMessage, Batch>();
+		final List<Batch> released = new ArrayList<Batch>();
+
+		synchronized (mWheel) {
+			mWheel.advance(System.currentTimeMillis(), new HierarchicalTimingWheel.ExpiredHandler<Delivery>() {
+				@Override
+				public void onExpired(Delivery delivery) {
+					Batch batch = batchMap.get(delivery.msg);
+					if (batch == null || batch.registrationTokens.size() >= RegistrationTokenSet.MAX_TOKENS_PER_REQUEST) {
+						batch = new Batch(delivery.msg);
+						batchMap.put(delivery.msg, batch);
+						released.add(batch);
+					}
+					batch.registrationTokens.add(delivery.registrationToken);
+				}
+			});
+		}
+
+		if (released.isEmpty()) {
+			return;
+		}
+
+		synchronized (mReleaseQueue) {
+			for (Batch batch : released) {
+				mReleaseQueueTokens += batch.registrationTokens.size();
+
+				// merge into the last waiting batch of the same message
+				final Batch last = mReleaseQueue.peekLast();
+				if (last != null && last.msg == batch.msg && last.registrationTokens.size() + batch.registrationTokens.size() <= RegistrationTokenSet.MAX_TOKENS_PER_REQUEST) {
+					last.registrationTokens.addAll(batch.registrationTokens);
+				} else {
+					mReleaseQueue.addLast(batch);
+				}
+			}
+		}
+	}
+
+	private void send(Batch batch) {
+		try {
+			final PreparedRequest request = mClient.prepare(batch.msg, batch.registrationTokens);
+			final FcmResponse res = mClient.send(request);
+			if (mListener != null) {
+				mListener.onChunkSent(request.registrationTokens, res);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Error occurred while sending delayed delivery.", e);
+		}
+	}
+}
@@ -23,22 +23,52 @@
 package org.riversun.fcm;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.riversun.fcm.codec.FcmCodec;
+import org.riversun.fcm.codec.FcmCodecs;
 import org.riversun.fcm.model.EntityMessage;
 import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.FcmResponse.FailureVisitor;
+import org.riversun.fcm.model.ImmutableEntityMessage;
+import org.riversun.fcm.model.Notification;
+import org.riversun.fcm.model.Priority;
+import org.riversun.fcm.model.RegistrationTokenSet;
+import org.riversun.fcm.model.RequestTiming;
 
 /**
  * A Simple Firebase Cloud Messaging client<br>
@@ -58,6 +88,22 @@ public class FcmClient {
 
 	private String mFcmServerAPIKey = null;
 
+	private static final int WARM_UP_ITERATIONS = 2000;
+
+	private int mMaxInFlightRequests = 4;
+
+	private volatile SlowRequestLog mSlowRequestLog = new SlowRequestLog(16);
+
+	private volatile DedupCache mDedupCache = null;
+
+	private volatile DeadLetterSink mDeadLetterSink = null;
+
+	private volatile FcmCodec mCodec = FcmCodecs.getDefault();
+
+	private final FcmClientManagement mManagement = new FcmClientManagement();
+
+	private ObjectName mObjectName = null;
+
 	public FcmClient() {
 
 	}
@@ -90,11 +136,690 @@ public class FcmClient {
 	 * }
 	 * </code>
 	 * 
+	 * <p>
+	 * If a dedup cache is set and the message has an idempotency key, tokens
+	 * that already received the key are dropped before sending (see
+	 * {@link FcmResponse#getSuppressedCount()}). If all tokens are dropped, no
+	 * request is made and the response has HTTP response code 0.
+	 * 
 	 * @param msg
 	 * @return
+	 * @throws IllegalStateException
+	 *             if the payload of the message exceeds the FCM limit
 	 */
 	public FcmResponse pushToEntities(EntityMessage msg) {
-		return pushNotify(msg.toJsonObject());
+		return send(prepare(msg, new ArrayList<String>(msg.getRegistrationTokenList())));
+	}
+
+	/**
+	 * To send the immutable message to specific entities
+	 * <p>
+	 * The cached JSON bytes of the message are sent as is. If some tokens are
+	 * dropped as duplicates, the request for the rest is encoded by the codec
+	 * (see {@link #setCodec(FcmCodec)}).
+	 * 
+	 * @param msg
+	 * @return
+	 * @see #pushToEntities(EntityMessage)
+	 */
+	public FcmResponse pushToEntities(ImmutableEntityMessage msg) {
+
+		final DedupCache dedupCache = mDedupCache;
+		final String idempotencyKey = msg.getIdempotencyKey();
+
+		final List<String> allTokens = msg.getRegistrationTokens();
+		final List<String> registrationTokens = selectRegistrationTokens(dedupCache, idempotencyKey, allTokens);
+
+		final byte[] requestBytes;
+		try {
+			requestBytes = (registrationTokens == allTokens) ? msg.toJsonBytes() : mCodec.encode(msg.toEntityMessage(), registrationTokens);
+		} catch (RuntimeException e) {
+			unmarkAll(dedupCache, idempotencyKey, registrationTokens);
+			throw e;
+		}
+		return send(new PreparedRequest(null, msg, dedupCache, idempotencyKey, allTokens.size(), registrationTokens, requestBytes));
+	}
+
+	/**
+	 * Request encoded for the tokens of a message that were not dropped as
+	 * duplicates
+	 */
+	static final class PreparedRequest {
+		final EntityMessage msg;
+		final ImmutableEntityMessage immutableMsg;
+		final DedupCache dedupCache;
+		final String idempotencyKey;
+		final int numOfAllTokens;
+		final List<String> registrationTokens;
+		final byte[] requestBytes;
+
+		PreparedRequest(EntityMessage msg, ImmutableEntityMessage immutableMsg, DedupCache dedupCache, String idempotencyKey, int numOfAllTokens, List<String> registrationTokens,
+				byte[] requestBytes) {
+			this.msg = msg;
+			this.immutableMsg = immutableMsg;
+			this.dedupCache = dedupCache;
+			this.idempotencyKey = idempotencyKey;
+			this.numOfAllTokens = numOfAllTokens;
+			this.registrationTokens = registrationTokens;
+			this.requestBytes = requestBytes;
+		}
+
+		/**
+		 * Returns the message to encode the request again
+		 */
+		EntityMessage getMessage() {
+			return msg != null ? msg : immutableMsg.toEntityMessage();
+		}
+	}
+
+	/**
+	 * Drop tokens that already received the idempotency key of the message and
+	 * encode the request for the rest
+	 * <p>
+	 * The selected tokens are marked in the dedup cache until
+	 * {@link #send(PreparedRequest)} or {@link #cancel(PreparedRequest)}.
+	 * 
+	 * @param msg
+	 * @param allTokens
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the payload of the message exceeds the FCM limit
+	 */
+	PreparedRequest prepare(EntityMessage msg, List<String> allTokens) {
+
+		if (!msg.fitsLimit()) {
+			// fail before marking tokens as sent
+			throw new IllegalStateException("payload is " + msg.getPayloadSize() + " bytes, exceeds the limit of " + EntityMessage.MAX_PAYLOAD_SIZE + " bytes");
+		}
+
+		final DedupCache dedupCache = mDedupCache;
+		final String idempotencyKey = msg.getIdempotencyKey();
+		final List<String> registrationTokens = selectRegistrationTokens(dedupCache, idempotencyKey, allTokens);
+
+		final byte[] requestBytes;
+		try {
+			requestBytes = mCodec.encode(msg, registrationTokens);
+		} catch (RuntimeException e) {
+			unmarkAll(dedupCache, idempotencyKey, registrationTokens);
+			throw e;
+		}
+		return new PreparedRequest(msg, null, dedupCache, idempotencyKey, allTokens.size(), registrationTokens, requestBytes);
+	}
+
+	/**
+	 * Forget the tokens of a prepared request that will not be sent
+	 * 
+	 * @param request
+	 */
+	void cancel(PreparedRequest request) {
+		unmarkAll(request.dedupCache, request.idempotencyKey, request.registrationTokens);
+	}
+
+	/**
+	 * Returns tokens not dropped as duplicates, or the specified list itself if
+	 * deduplication is not applied
+	 */
+	private static List<String> selectRegistrationTokens(DedupCache dedupCache, String idempotencyKey, List<String> allTokens) {
+		if (dedupCache == null || idempotencyKey == null) {
+			return allTokens;
+		}
+
+		final List<String> registrationTokens = new ArrayList<String>(allTokens.size());
+		for (String registrationToken : allTokens) {
+			if (dedupCache.markIfAbsent(idempotencyKey, registrationToken)) {
+				registrationTokens.add(registrationToken);
+			}
+		}
+		return registrationTokens;
+	}
+
+	/**
+	 * Send the prepared request, then forget the tokens that were not
+	 * delivered so that upstream retries can reach them
+	 * <p>
+	 * If all tokens were dropped, no request is made and the response has HTTP
+	 * response code 0.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	FcmResponse send(PreparedRequest request) {
+		return send(request, true);
+	}
+
+	/**
+	 * 
+	 * @param request
+	 * @param deadLetterRetryable
+	 *            false if the caller retries tokens with retryable errors
+	 *            itself
+	 * @return
+	 */
+	FcmResponse send(PreparedRequest request, boolean deadLetterRetryable) {
+
+		final DedupCache dedupCache = request.dedupCache;
+		final String idempotencyKey = request.idempotencyKey;
+		final List<String> registrationTokens = request.registrationTokens;
+
+		final int suppressedCount = request.numOfAllTokens - registrationTokens.size();
+		if (suppressedCount > 0) {
+			LOGGER.fine(suppressedCount + " duplicated tokens suppressed for idempotency key " + idempotencyKey);
+		}
+
+		final FcmResponse res;
+		if (suppressedCount > 0 && registrationTokens.isEmpty()) {
+			res = new FcmResponse(0, new JSONObject().put("success", 0).put("failure", 0).put("canonical_ids", 0));
+		} else {
+			try {
+				res = pushNotifyBytes(request.requestBytes);
+			} catch (RuntimeException e) {
+				unmarkAll(dedupCache, idempotencyKey, registrationTokens);
+				throw e;
+			}
+			if (dedupCache != null && idempotencyKey != null) {
+				unmarkRetryable(dedupCache, idempotencyKey, registrationTokens, res);
+			}
+			if (deadLetterRetryable && res != null && res.isEnabled()) {
+				sendRetryableToDeadLetterSink(request, res);
+			}
+		}
+
+		if (res != null) {
+			res.setRegistrationTokens(registrationTokens);
+			res.setSuppressedCount(suppressedCount);
+		}
+		return res;
+	}
+
+	/**
+	 * Forget all tokens marked for a request that was not made
+	 */
+	private static void unmarkAll(DedupCache dedupCache, String idempotencyKey, List<String> registrationTokens) {
+		if (dedupCache == null || idempotencyKey == null) {
+			return;
+		}
+		for (String registrationToken : registrationTokens) {
+			dedupCache.unmark(idempotencyKey, registrationToken);
+		}
+	}
+
+	/**
+	 * Forget tokens that were not delivered, so that upstream retries can
+	 * reach them
+	 */
+	private static void unmarkRetryable(final DedupCache dedupCache, final String idempotencyKey, final List<String> registrationTokens, FcmResponse res) {
+
+		if (res == null || !res.isEnabled()) {
+			for (String registrationToken : registrationTokens) {
+				dedupCache.unmark(idempotencyKey, registrationToken);
+			}
+			return;
+		}
+
+		res.forEachFailure(new FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				if (index < registrationTokens.size() && isRetryable(error)) {
+					dedupCache.unmark(idempotencyKey, registrationTokens.get(index));
+				}
+			}
+		});
+	}
+
+	private static boolean isRetryable(String error) {
+		return "Unavailable".equals(error) || "InternalServerError".equals(error);
+	}
+
+	/**
+	 * The client does not retry tokens with retryable errors in a successful
+	 * response, so send a request for them to the dead letter sink, one for
+	 * each error code
+	 */
+	private void sendRetryableToDeadLetterSink(PreparedRequest request, FcmResponse res) {
+		if (mDeadLetterSink == null) {
+			return;
+		}
+
+		final List<String> registrationTokens = request.registrationTokens;
+		final Map<String, List<String>> retryableTokens = new LinkedHashMap<String, List<String>>();
+		res.forEachFailure(new FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				if (index < registrationTokens.size() && isRetryable(error)) {
+					List<String> tokens = retryableTokens.get(error);
+					if (tokens == null) {
+						tokens = new ArrayList<String>();
+						retryableTokens.put(error, tokens);
+					}
+					tokens.add(registrationTokens.get(index));
+				}
+			}
+		});
+		if (retryableTokens.isEmpty()) {
+			return;
+		}
+
+		final EntityMessage msg = request.getMessage();
+		for (Map.Entry<String, List<String>> entry : retryableTokens.entrySet()) {
+			final byte[] requestBytes;
+			try {
+				requestBytes = mCodec.encode(msg, entry.getValue());
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Failed to encode dead letter.", e);
+				continue;
+			}
+			sendToDeadLetterSink(requestBytes, entry.getKey(), res);
+		}
+	}
+
+	/**
+	 * Set sink that receives requests that could not be delivered
+	 * <p>
+	 * A request is a dead letter when the endpoint could not be reached or
+	 * responded with an HTTP error. For tokens with retryable errors
+	 * (Unavailable, InternalServerError) in a successful response, a request
+	 * for just those tokens is a dead letter with the error code as the
+	 * reason, except for {@link Campaign}, which keeps them pending.
+	 * 
+	 * @param deadLetterSink
+	 *            null to disable
+	 */
+	public void setDeadLetterSink(DeadLetterSink deadLetterSink) {
+		mDeadLetterSink = deadLetterSink;
+	}
+
+	public DeadLetterSink getDeadLetterSink() {
+		return mDeadLetterSink;
+	}
+
+	/**
+	 * Set cache to drop duplicated pushes of messages with an idempotency key
+	 * <p>
+	 * Applied to every send path: pushToEntities, pushToAudience,
+	 * {@link PushPipeline}, {@link DelayedDeliveryQueue} and {@link Campaign}.
+	 * 
+	 * @param dedupCache
+	 *            null to disable
+	 */
+	public void setDedupCache(DedupCache dedupCache) {
+		mDedupCache = dedupCache;
+	}
+
+	/**
+	 * Push the message to a large audience pulled from the iterator
+	 * <p>
+	 * Tokens are pulled in chunks of the batch size (see
+	 * {@link #setAdaptiveBatchSizer(AdaptiveBatchSizer)}) only when a sending
+	 * slot is available (see {@link #setMaxInFlightRequests(int)}), so memory
+	 * usage stays flat regardless of the size of the audience. Registration
+	 * tokens registered in the message itself are ignored.
+	 * <p>
+	 * This method blocks until all chunks have been sent.
+	 * 
+	 * @param msg
+	 *            message used as a template, must not be modified during
+	 *            sending
+	 * @param registrationTokens
+	 * @param listener
+	 *            receives the response of each chunk, can be null
+	 * @return number of tokens pulled from the iterator
+	 * @throws IllegalStateException
+	 *             if the payload of the message exceeds the FCM limit
+	 */
+	public long pushToAudience(EntityMessage msg, Iterator<String> registrationTokens, AudienceListener listener) {
+
+		if (!msg.fitsLimit()) {
+			// fail before pulling any token
+			throw new IllegalStateException("payload is " + msg.getPayloadSize() + " bytes, exceeds the limit of " + EntityMessage.MAX_PAYLOAD_SIZE + " bytes");
+		}
+
+		final int maxInFlight = mMaxInFlightRequests;
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, new SenderThreadFactory());
+
+		long numOfTokens = 0;
+
+		try {
+			while (registrationTokens.hasNext()) {
+
+				// wait for free slot before pulling tokens
+				inFlight.acquireUninterruptibly();
+
+				final int batchSize = mManagement.getBatchSize();
+				final List<String> chunk = new ArrayList<String>(batchSize);
+				final PreparedRequest request;
+				try {
+					while (chunk.size() < batchSize && registrationTokens.hasNext()) {
+						chunk.add(registrationTokens.next());
+					}
+					numOfTokens += chunk.size();
+
+					request = prepare(msg, chunk);
+				} catch (RuntimeException e) {
+					inFlight.release();
+					throw e;
+				}
+
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							final FcmResponse res = send(request);
+							mManagement.recordBatch(request.registrationTokens.size(), res);
+							if (listener != null) {
+								listener.onChunkSent(request.registrationTokens, res);
+							}
+						} catch (RuntimeException e) {
+							LOGGER.log(Level.WARNING, "Error occurred while sending chunk.", e);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		} finally {
+			// wait for all chunks, also if pulling tokens failed, so that the
+			// listener is not called after returning
+			inFlight.acquireUninterruptibly(maxInFlight);
+			inFlight.release(maxInFlight);
+
+			executor.shutdown();
+		}
+		return numOfTokens;
+	}
+
+	/**
+	 * Push the message to a large audience pulled from the stream
+	 * <p>
+	 * The stream is not closed by this method.
+	 * 
+	 * @param msg
+	 * @param registrationTokens
+	 * @param listener
+	 * @return number of tokens pulled from the stream
+	 * @see #pushToAudience(EntityMessage, Iterator, AudienceListener)
+	 */
+	public long pushToAudience(EntityMessage msg, Stream<String> registrationTokens, AudienceListener listener) {
+		return pushToAudience(msg, registrationTokens.iterator(), listener);
+	}
+
+	/**
+	 * Push the message to a large audience read from the UTF-8 text file that
+	 * contains a registration token per line
+	 * <p>
+	 * Blank lines are skipped.
+	 * 
+	 * @param msg
+	 * @param registrationTokenFile
+	 * @param listener
+	 * @return number of tokens read from the file
+	 * @throws IOException
+	 * @see #pushToAudience(EntityMessage, Iterator, AudienceListener)
+	 */
+	public long pushToAudience(EntityMessage msg, Path registrationTokenFile, AudienceListener listener) throws IOException {
+
+		final BufferedReader br = Files.newBufferedReader(registrationTokenFile, StandardCharsets.UTF_8);
+		try {
+			return pushToAudience(msg, new LineIterator(br), listener);
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Set max number of requests sent concurrently by pushToAudience
+	 * 
+	 * @param maxInFlightRequests
+	 */
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		if (maxInFlightRequests <= 0) {
+			throw new IllegalArgumentException("maxInFlightRequests must be positive");
+		}
+		mMaxInFlightRequests = maxInFlightRequests;
+	}
+
+	public int getMaxInFlightRequests() {
+		return mMaxInFlightRequests;
+	}
+
+	/**
+	 * Set sizer that adjusts number of tokens per request sent by
+	 * pushToAudience, {@link Campaign} and {@link PushPipeline}
+	 * 
+	 * @param batchSizer
+	 *            null to always send
+	 *            {@link RegistrationTokenSet#MAX_TOKENS_PER_REQUEST} tokens
+	 */
+	public void setAdaptiveBatchSizer(AdaptiveBatchSizer batchSizer) {
+		mManagement.setBatchSizer(batchSizer);
+	}
+
+	public AdaptiveBatchSizer getAdaptiveBatchSizer() {
+		return mManagement.getBatchSizer();
+	}
+
+	/**
+	 * Returns current number of tokens per multicast request
+	 * 
+	 * @return
+	 */
+	int getBatchSize() {
+		return mManagement.getBatchSize();
+	}
+
+	void recordBatch(int batchSize, FcmResponse res) {
+		mManagement.recordBatch(batchSize, res);
+	}
+
+	/**
+	 * Returns the log of the slowest requests sent by this client
+	 * 
+	 * @return
+	 */
+	public SlowRequestLog getSlowRequestLog() {
+		return mSlowRequestLog;
+	}
+
+	/**
+	 * Set number of the slowest requests to keep in the log
+	 * 
+	 * @param maxEntries
+	 */
+	public void setSlowRequestLogSize(int maxEntries) {
+		mSlowRequestLog = new SlowRequestLog(maxEntries);
+	}
+
+	/**
+	 * Returns the management interface to view statistics and to pause, drain
+	 * or throttle this client at runtime
+	 * 
+	 * @return
+	 */
+	public FcmClientMXBean getMXBean() {
+		return mManagement;
+	}
+
+	/**
+	 * Hold or release requests on behalf of the application
+	 * <p>
+	 * Independent of {@link FcmClientMXBean#pause()}, so releasing a
+	 * suspension does not resume a client paused by an operator, and vice
+	 * versa. Requests are sent only while neither holds them.
+	 * 
+	 * @param suspended
+	 */
+	public void setSuspended(boolean suspended) {
+		mManagement.setSuspended(suspended);
+	}
+
+	public boolean isSuspended() {
+		return mManagement.isSuspended();
+	}
+
+	/**
+	 * Register the management interface to the platform MBean server as
+	 * <code>org.riversun.fcm:type=FcmClient,name=&lt;name&gt;</code>
+	 * 
+	 * @param name
+	 *            name to identify this client in the JVM
+	 * @return registered object name
+	 * @throws JMException
+	 * @throws IllegalStateException
+	 *             if already registered
+	 */
+	public synchronized ObjectName registerMBean(String name) throws JMException {
+		if (mObjectName != null) {
+			throw new IllegalStateException("already registered as " + mObjectName);
+		}
+		final ObjectName objectName = new ObjectName("org.riversun.fcm:type=FcmClient,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(mManagement, objectName);
+		mObjectName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Unregister the management interface registered by
+	 * {@link #registerMBean(String)}
+	 * 
+	 * @throws JMException
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (mObjectName == null) {
+			return;
+		}
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+		mObjectName = null;
+	}
+
+	void addManagedQueue(ManagedQueue queue) {
+		mManagement.addQueue(queue);
+	}
+
+	void removeManagedQueue(ManagedQueue queue) {
+		mManagement.removeQueue(queue);
+	}
+
+	/**
+	 * Prepare this client to send with steady-state latency from the first
+	 * push
+	 * <p>
+	 * Runs {@link #warmUpLocally()}, resolves the endpoint, then sends
+	 * <code>dry_run</code> requests concurrently so that the specified number of
+	 * connections complete the TLS handshake and stay in the keep-alive cache
+	 * of HttpURLConnection. The cache holds at most
+	 * <code>http.maxConnections</code> (default 5) idle connections per
+	 * destination, so raise the system property to keep more. Idle
+	 * connections are closed after the keep-alive timeout (5 seconds unless
+	 * the server specifies), so call this shortly before taking traffic.
+	 * <p>
+	 * Warm-up requests are not counted in the statistics, the dead letters or
+	 * the slow request log, and are not delayed by pause or the rate limit.
+	 * 
+	 * @param numOfConnections
+	 *            number of connections to open
+	 * @return number of connections that got a response
+	 */
+	public int warmUp(int numOfConnections) {
+		if (numOfConnections <= 0) {
+			throw new IllegalArgumentException("numOfConnections must be positive");
+		}
+		if (numOfConnections > mManagement.getMaxKeepAliveConnections()) {
+			LOGGER.warning("Only " + mManagement.getMaxKeepAliveConnections() + " connections are kept alive. Set http.maxConnections to keep " + numOfConnections + ".");
+		}
+
+		warmUpLocally();
+
+		try {
+			InetAddress.getAllByName(new URL(mFcmSendEndpoint).getHost());
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to resolve " + mFcmSendEndpoint, e);
+			return 0;
+		}
+
+		// registration token is not validated by dry_run requests
+		final byte[] requestBytes = new JSONObject().put("registration_ids", new JSONArray().put("warm-up")).put("dry_run", true).toString().getBytes(StandardCharsets.UTF_8);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(numOfConnections, new SenderThreadFactory());
+		final List<Future<FcmResponse>> futures = new ArrayList<Future<FcmResponse>>(numOfConnections);
+		try {
+			for (int i = 0; i < numOfConnections; i++) {
+				futures.add(executor.submit(new Callable<FcmResponse>() {
+					@Override
+					public FcmResponse call() {
+						return sendRequest(requestBytes, false);
+					}
+				}));
+			}
+
+			int numOfConnected = 0;
+			for (Future<FcmResponse> future : futures) {
+				try {
+					if (future.get() != null) {
+						numOfConnected++;
+					}
+				} catch (ExecutionException e) {
+					LOGGER.log(Level.WARNING, "Error occurred while warming up.", e.getCause());
+				}
+			}
+			return numOfConnected;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Exercise serialization of messages and parsing of responses without
+	 * any network access
+	 * <p>
+	 * Loads and compiles the classes used on the sending path. As nothing is
+	 * sent and no socket is left open, this can be run in an AppCDS training
+	 * run or before a CRaC checkpoint. Call {@link #warmUp(int)} after the
+	 * restore to open connections.
+	 */
+	public void warmUpLocally() {
+		final byte[] responseBody = ("{\"multicast_id\":1,\"success\":1,\"failure\":1,\"canonical_ids\":1,\"results\":"
+				+ "[{\"message_id\":\"0:1\",\"registration_id\":\"warm-up-2\"},{\"error\":\"NotRegistered\"}]}").getBytes(StandardCharsets.UTF_8);
+
+		final ImmutableEntityMessage immutableMsg = new ImmutableEntityMessage.Builder()
+				.putStringData("key", "value")
+				.notification(new Notification.Builder().title("title").body("body").build())
+				.priority(Priority.HIGH)
+				.registrationTokens("warm-up-1", "warm-up-2")
+				.build();
+
+		int sink = 0;
+		for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+			final EntityMessage msg = new EntityMessage();
+			msg.addRegistrationToken("warm-up-1");
+			msg.addRegistrationToken("warm-up-2");
+			msg.putStringData("key", "value" + i);
+			msg.putBooleanData("flag", true);
+			msg.setNotification(immutableMsg.getNotification());
+			msg.setPriority(Priority.HIGH);
+			sink += msg.toJsonObject().toString().length();
+			sink += mCodec.encode(msg, msg.getRegistrationTokenList()).length;
+
+			sink += immutableMsg.withRegistrationTokens(msg.getRegistrationTokenList()).toJsonBytes().length;
+
+			final FcmResponse res = mCodec.decode(200, responseBody);
+			res.forEachFailure(new FailureVisitor() {
+				@Override
+				public void onFailure(int index, String error) {
+				}
+			});
+			sink += res.getResult().size();
+			sink += new JSONObject(new String(responseBody, StandardCharsets.UTF_8)).length();
+		}
+		LOGGER.fine("Warmed up locally (" + sink + ")");
 	}
 
 	/**
@@ -109,6 +834,24 @@ public class FcmClient {
 		mFcmServerAPIKey = serverApiKey;
 	}
 
+	/**
+	 * Set the codec to encode requests and decode responses
+	 * <p>
+	 * The default is {@link FcmCodecs#getDefault()}.
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(FcmCodec codec) {
+		if (codec == null) {
+			throw new IllegalArgumentException("codec must not be null");
+		}
+		mCodec = codec;
+	}
+
+	public FcmCodec getCodec() {
+		return mCodec;
+	}
+
 	/**
 	 * Send json to fcm endpoint to execute push notification.
 	 * 
@@ -117,23 +860,75 @@ public class FcmClient {
 	 * @throws IOException
 	 */
 	public FcmResponse pushNotify(JSONObject json) {
+		return pushNotifyText(json.toString());
+	}
+
+	/**
+	 * Send json text to fcm endpoint
+	 * <p>
+	 * Waits while the client is paused or suspended and for the rate limit set
+	 * through {@link #getMXBean()}. If interrupted while waiting, the request
+	 * is not made and null is returned.
+	 * 
+	 * @param requestText
+	 * @return
+	 */
+	FcmResponse pushNotifyText(String requestText) {
+		return pushNotifyBytes(requestText.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Send UTF-8 encoded json to fcm endpoint
+	 * 
+	 * @param requestBytes
+	 * @return
+	 * @see #pushNotifyText(String)
+	 */
+	FcmResponse pushNotifyBytes(byte[] requestBytes) {
+
+		try {
+			mManagement.beforeRequest();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.WARNING, "Interrupted while waiting to send.", e);
+			sendToDeadLetterSink(requestBytes, null, e);
+			return null;
+		}
+
+		FcmResponse ret = null;
+		try {
+			ret = sendRequest(requestBytes, true);
+			return ret;
+		} finally {
+			mManagement.afterRequest(ret);
+		}
+	}
+
+	/**
+	 * 
+	 * @param requestBytes
+	 * @param record
+	 *            false not to record dead letters and slow requests
+	 * @return
+	 */
+	private FcmResponse sendRequest(byte[] requestBytes, boolean record) {
 		FcmResponse ret = null;
 
-		final String requestText = json.toString();
-		LOGGER.fine("request:\n" + requestText);
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("request:\n" + new String(requestBytes, StandardCharsets.UTF_8));
+		}
+
+		final RequestTiming timing = new RequestTiming();
+		timing.markStart();
 
 		URL url = null;
 
-		PrintWriter pw = null;
-		BufferedWriter bw = null;
-		OutputStreamWriter osw = null;
 		OutputStream os = null;
-
-		BufferedReader br = null;
-		InputStreamReader isr = null;
 		InputStream is = null;
 		HttpURLConnection con = null;
 
+		Exception failure = null;
+
 		try {
 			url = new URL(mFcmSendEndpoint);
 
@@ -145,43 +940,43 @@ public class FcmClient {
 			con.setInstanceFollowRedirects(false);
 			// connect
 			con.connect();
+			timing.markConnected();
 
+			// send request
 			os = con.getOutputStream();
-			osw = new OutputStreamWriter(os, "UTF-8");
-			bw = new BufferedWriter(osw);
-			pw = new PrintWriter(bw);
+			os.write(requestBytes);
+			os.flush();
+			timing.markRequestSent(requestBytes.length);
 
-			// send request
-			pw.print(requestText);
-			pw.flush();
+			final int responseCode = con.getResponseCode();
+			timing.markResponseStarted();
 
+			// receive response
 			is = con.getInputStream();
-			isr = new InputStreamReader(is, "UTF-8");
-			br = new BufferedReader(isr);
-
-			final StringBuilder sb = new StringBuilder();
+			final byte[] responseBytes = readFully(is);
+			timing.markCompleted(responseBytes.length);
 
-			// receive response
-			for (String line; (line = br.readLine()) != null;) {
-				sb.append(line);
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("response:\n" + new String(responseBytes, StandardCharsets.UTF_8));
 			}
 
-			final String responseText = sb.toString();
-			LOGGER.fine("response:\n" + responseText);
-
-			final JSONObject jo = new JSONObject(responseText);
-
-			ret = new FcmResponse(con.getResponseCode(), jo);
+			ret = mCodec.decode(responseCode, responseBytes);
 
 		} catch (MalformedURLException e) {
+			failure = e;
+			LOGGER.log(Level.SEVERE, "Invalid endpoint " + mFcmSendEndpoint, e);
 
 		} catch (IOException e) {
 			// when network error occurred
+			failure = e;
 
 			if (con != null) {
 
 				try {
 					final int responseCode = con.getResponseCode();
+					if (timing.getResponseStartedNanos() == 0) {
+						timing.markResponseStarted();
+					}
 
 					if (responseCode >= 400) {
 						final String errorMsg = getFromStream(con.getErrorStream());
@@ -199,40 +994,12 @@ public class FcmClient {
 
 		} finally {
 
-			if (pw != null) {
-				pw.close();
-			}
-
-			if (bw != null) {
-				try {
-					bw.close();
-				} catch (IOException e) {
-				}
-			}
-			if (osw != null) {
-				try {
-					osw.close();
-				} catch (IOException e) {
-				}
-			}
 			if (os != null) {
 				try {
 					os.close();
 				} catch (IOException e) {
 				}
 			}
-			if (br != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-				}
-			}
-			if (isr != null) {
-				try {
-					isr.close();
-				} catch (IOException e) {
-				}
-			}
 			if (is != null) {
 				try {
 					is.close();
@@ -241,10 +1008,66 @@ public class FcmClient {
 			}
 
 		}
+
+		if (timing.getCompletedNanos() == 0) {
+			timing.markCompleted(0);
+		}
+		if (ret != null) {
+			ret.setTiming(timing);
+		}
+		if (!record) {
+			return ret;
+		}
+		if (ret == null || !ret.isEnabled()) {
+			sendToDeadLetterSink(requestBytes, ret, failure);
+		}
+		final SlowRequestLog slowRequestLog = mSlowRequestLog;
+		if (slowRequestLog.isCandidate(timing.getTotalNanos())) {
+			final boolean hasResponse = con != null && timing.getResponseStartedNanos() != 0;
+			slowRequestLog.record(mFcmSendEndpoint, ret != null ? ret.getHttpResponseCode() : -1, timing, hasResponse ? con.getHeaderFields() : null);
+		}
 		return ret;
 
 	}
 
+	private void sendToDeadLetterSink(byte[] requestBytes, FcmResponse res, Exception failure) {
+
+		if (mDeadLetterSink == null) {
+			return;
+		}
+
+		final String reason;
+		if (res != null) {
+			reason = "HTTP " + res.getHttpResponseCode() + (failure != null ? " " + failure : "");
+		} else {
+			reason = String.valueOf(failure);
+		}
+		sendToDeadLetterSink(requestBytes, reason, res);
+	}
+
+	private void sendToDeadLetterSink(byte[] requestBytes, String reason, FcmResponse res) {
+
+		final DeadLetterSink sink = mDeadLetterSink;
+		if (sink == null) {
+			return;
+		}
+
+		try {
+			sink.onDeadLetter(new DeadLetter(System.currentTimeMillis(), reason, new String(requestBytes, StandardCharsets.UTF_8), res));
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Failed to send to dead letter sink.", e);
+		}
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+		for (int len; (len = is.read(buf)) != -1;) {
+			baos.write(buf, 0, len);
+		}
+		return baos.toByteArray();
+	}
+
 	private String getFromStream(InputStream is) {
 
 		BufferedReader br = null;
@@ -285,4 +1108,57 @@ public class FcmClient {
 
 	}
 
+	/**
+	 * Iterates non-blank lines of the reader
+	 */
+	private static class LineIterator implements Iterator<String> {
+
+		private final BufferedReader mReader;
+		private String mNextLine;
+
+		LineIterator(BufferedReader reader) {
+			mReader = reader;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while (mNextLine == null) {
+					final String line = mReader.readLine();
+					if (line == null) {
+						return false;
+					}
+					if (!line.trim().isEmpty()) {
+						mNextLine = line.trim();
+					}
+				}
+				return true;
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final String line = mNextLine;
+			mNextLine = null;
+			return line;
+		}
+	}
+
+	static class SenderThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger sThreadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "fcm-sender-" + sThreadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 }
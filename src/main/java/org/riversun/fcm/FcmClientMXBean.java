@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link FcmClient}<br>
+ * <p>
+ * Register with {@link FcmClient#registerMBean(String)} to view and control
+ * the client through JMX.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public interface FcmClientMXBean {
+
+	/**
+	 * Returns number of requests being sent
+	 */
+	public int getInFlightRequests();
+
+	/**
+	 * Returns number of registration tokens waiting in the pipelines and
+	 * delayed delivery queues bound to the client
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns max number of idle connections kept alive per destination by
+	 * HttpURLConnection (system property http.maxConnections)
+	 */
+	public int getMaxKeepAliveConnections();
+
+	public long getTotalRequests();
+
+	/**
+	 * Returns number of requests failed in network or HTTP level
+	 */
+	public long getFailedRequests();
+
+	/**
+	 * Returns number of requests by HTTP response code, "-1" for requests
+	 * without response
+	 */
+	public Map<String, Long> getHttpStatusHistogram();
+
+	/**
+	 * Returns number of results by error code like "NotRegistered"
+	 */
+	public Map<String, Long> getErrorCodeHistogram();
+
+	/**
+	 * Returns number of tokens in successful responses
+	 */
+	public long getTotalResults();
+
+	/**
+	 * Returns ratio of results with a canonical registration id
+	 */
+	public double getCanonicalIdRate();
+
+	/**
+	 * Returns ratio of results with NotRegistered or InvalidRegistration
+	 */
+	public double getInvalidTokenRate();
+
+	/**
+	 * Clear statistics
+	 */
+	public void resetStatistics();
+
+	public boolean isPaused();
+
+	/**
+	 * Hold requests until {@link #resume()} is called
+	 */
+	public void pause();
+
+	public void resume();
+
+	/**
+	 * Returns true if requests are held by the application, for example by a
+	 * cluster coordinator whose lease has expired, independently of
+	 * {@link #pause()}
+	 */
+	public boolean isSuspended();
+
+	/**
+	 * Discard messages waiting in the pipelines and delayed delivery queues
+	 * bound to the client
+	 * 
+	 * @return number of registration tokens discarded
+	 */
+	public int drainQueues();
+
+	/**
+	 * Returns current number of tokens per multicast request, adjusted by the
+	 * adaptive batch sizer if set
+	 */
+	public int getBatchSize();
+
+	/**
+	 * Returns max number of requests per second, 0 means unlimited
+	 */
+	public double getMaxRequestsPerSecond();
+
+	public void setMaxRequestsPerSecond(double maxRequestsPerSecond);
+}
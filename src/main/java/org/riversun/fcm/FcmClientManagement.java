@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.FcmResponse.FailureVisitor;
+import org.riversun.fcm.model.RegistrationTokenSet;
+import org.riversun.fcm.util.RateLimiter;
+
+/**
+ * Live state and runtime controls of a {@link FcmClient}<br>
+ * <p>
+ * Statistics are counted since the client was created or
+ * {@link #resetStatistics()} was called.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+class FcmClientManagement implements FcmClientMXBean {
+
+	private final AtomicInteger mInFlightRequests = new AtomicInteger();
+
+	private final LongAdder mTotalRequests = new LongAdder();
+	private final LongAdder mFailedRequests = new LongAdder();
+	private final LongAdder mTotalResults = new LongAdder();
+	private final LongAdder mCanonicalIds = new LongAdder();
+	private final LongAdder mInvalidTokens = new LongAdder();
+
+	private final ConcurrentHashMap<Integer, LongAdder> mHttpStatusCounts = new ConcurrentHashMap<Integer, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> mErrorCodeCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	private final List<ManagedQueue> mQueues = new CopyOnWriteArrayList<ManagedQueue>();
+
+	private final RateLimiter mRateLimiter = new RateLimiter(0);
+
+	private volatile AdaptiveBatchSizer mBatchSizer = null;
+
+	private final Object mPauseLock = new Object();
+	private boolean mPaused = false;
+	private boolean mSuspended = false;
+
+	/**
+	 * Wait while paused and for the rate limit, then count the request as in
+	 * flight
+	 * 
+	 * @throws InterruptedException
+	 */
+	void beforeRequest() throws InterruptedException {
+		synchronized (mPauseLock) {
+			while (mPaused || mSuspended) {
+				mPauseLock.wait();
+			}
+		}
+		mRateLimiter.acquire();
+		mInFlightRequests.incrementAndGet();
+	}
+
+	/**
+	 * Count the result of the request started by {@link #beforeRequest()}
+	 * 
+	 * @param res
+	 *            null if the request could not be made
+	 */
+	void afterRequest(FcmResponse res) {
+		mInFlightRequests.decrementAndGet();
+		mTotalRequests.increment();
+
+		final int httpResponseCode = res != null ? res.getHttpResponseCode() : -1;
+		increment(mHttpStatusCounts, httpResponseCode);
+
+		if (res == null || !res.isEnabled()) {
+			mFailedRequests.increment();
+			return;
+		}
+
+		// a result per token, counted without decoding the results
+		final Integer success = res.getSuccess();
+		mTotalResults.add((success != null ? success : 0) + res.getFailure());
+		mCanonicalIds.add(res.getCanonicalIds());
+
+		res.forEachFailure(new FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				increment(mErrorCodeCounts, error);
+				if ("NotRegistered".equals(error) || "InvalidRegistration".equals(error)) {
+					mInvalidTokens.increment();
+				}
+			}
+		});
+	}
+
+	void addQueue(ManagedQueue queue) {
+		mQueues.add(queue);
+	}
+
+	void removeQueue(ManagedQueue queue) {
+		mQueues.remove(queue);
+	}
+
+	@Override
+	public int getInFlightRequests() {
+		return mInFlightRequests.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ManagedQueue queue : mQueues) {
+			depth += queue.getPendingTokenCount();
+		}
+		return depth;
+	}
+
+	@Override
+	public int getMaxKeepAliveConnections() {
+		return Integer.getInteger("http.maxConnections", 5);
+	}
+
+	@Override
+	public long getTotalRequests() {
+		return mTotalRequests.sum();
+	}
+
+	@Override
+	public long getFailedRequests() {
+		return mFailedRequests.sum();
+	}
+
+	@Override
+	public Map<String, Long> getHttpStatusHistogram() {
+		return snapshot(mHttpStatusCounts);
+	}
+
+	@Override
+	public Map<String, Long> getErrorCodeHistogram() {
+		return snapshot(mErrorCodeCounts);
+	}
+
+	@Override
+	public long getTotalResults() {
+		return mTotalResults.sum();
+	}
+
+	@Override
+	public double getCanonicalIdRate() {
+		return rate(mCanonicalIds.sum(), mTotalResults.sum());
+	}
+
+	@Override
+	public double getInvalidTokenRate() {
+		return rate(mInvalidTokens.sum(), mTotalResults.sum());
+	}
+
+	@Override
+	public void resetStatistics() {
+		mTotalRequests.reset();
+		mFailedRequests.reset();
+		mTotalResults.reset();
+		mCanonicalIds.reset();
+		mInvalidTokens.reset();
+		mHttpStatusCounts.clear();
+		mErrorCodeCounts.clear();
+	}
+
+	@Override
+	public boolean isPaused() {
+		synchronized (mPauseLock) {
+			return mPaused;
+		}
+	}
+
+	@Override
+	public void pause() {
+		synchronized (mPauseLock) {
+			mPaused = true;
+		}
+	}
+
+	@Override
+	public void resume() {
+		synchronized (mPauseLock) {
+			mPaused = false;
+			mPauseLock.notifyAll();
+		}
+	}
+
+	@Override
+	public boolean isSuspended() {
+		synchronized (mPauseLock) {
+			return mSuspended;
+		}
+	}
+
+	void setSuspended(boolean suspended) {
+		synchronized (mPauseLock) {
+			mSuspended = suspended;
+			mPauseLock.notifyAll();
+		}
+	}
+
+	@Override
+	public int drainQueues() {
+		int drained = 0;
+		for (ManagedQueue queue : mQueues) {
+			drained += queue.drain();
+		}
+		return drained;
+	}
+
+	void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+		mBatchSizer = batchSizer;
+	}
+
+	AdaptiveBatchSizer getBatchSizer() {
+		return mBatchSizer;
+	}
+
+	/**
+	 * Feed the response of a multicast request to the batch sizer
+	 * 
+	 * @param batchSize
+	 * @param res
+	 */
+	void recordBatch(int batchSize, FcmResponse res) {
+		final AdaptiveBatchSizer batchSizer = mBatchSizer;
+		if (batchSizer != null) {
+			batchSizer.record(batchSize, res);
+		}
+	}
+
+	@Override
+	public int getBatchSize() {
+		final AdaptiveBatchSizer batchSizer = mBatchSizer;
+		return batchSizer != null ? batchSizer.getBatchSize() : RegistrationTokenSet.MAX_TOKENS_PER_REQUEST;
+	}
+
+	@Override
+	public double getMaxRequestsPerSecond() {
+		return mRateLimiter.getRate();
+	}
+
+	@Override
+	public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+		mRateLimiter.setRate(maxRequestsPerSecond);
+	}
+
+	private static <K> void increment(ConcurrentHashMap<K, LongAdder> counts, K key) {
+		LongAdder counter = counts.get(key);
+		if (counter == null) {
+			final LongAdder newCounter = new LongAdder();
+			counter = counts.putIfAbsent(key, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.increment();
+	}
+
+	private static <K> Map<String, Long> snapshot(Map<K, LongAdder> counts) {
+		final Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<K, LongAdder> entry : counts.entrySet()) {
+			map.put(String.valueOf(entry.getKey()), entry.getValue().sum());
+		}
+		return map;
+	}
+
+	private static double rate(long count, long total) {
+		return total == 0 ? 0 : (double) count / total;
+	}
+}
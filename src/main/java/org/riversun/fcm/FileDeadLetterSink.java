@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dead letter sink that appends dead letters to a local file<br>
+ * <p>
+ * Each dead letter is written as a line of JSON text (see
+ * {@link DeadLetter#toJson()}) and flushed immediately.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class FileDeadLetterSink implements DeadLetterSink, Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(FileDeadLetterSink.class.getName());
+
+	private final Path mFile;
+	private final Writer mWriter;
+
+	/**
+	 * 
+	 * @param file
+	 *            created if not exists
+	 * @throws IOException
+	 */
+	public FileDeadLetterSink(Path file) throws IOException {
+		mFile = file;
+		mWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public synchronized void onDeadLetter(DeadLetter deadLetter) {
+		try {
+			mWriter.write(deadLetter.toJson());
+			mWriter.write('\n');
+			mWriter.flush();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to write dead letter to " + mFile + " " + deadLetter, e);
+		}
+	}
+
+	public Path getFile() {
+		return mFile;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		mWriter.close();
+	}
+
+	/**
+	 * Returns iterator of dead letters in the file
+	 * <p>
+	 * Invalid lines such as partially written ones are skipped.
+	 * 
+	 * @param reader
+	 * @return
+	 */
+	static Iterator<DeadLetter> iterator(final BufferedReader reader) {
+
+		return new Iterator<DeadLetter>() {
+
+			private DeadLetter mNext;
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while (mNext == null) {
+						final String line = reader.readLine();
+						if (line == null) {
+							return false;
+						}
+						if (line.trim().isEmpty()) {
+							continue;
+						}
+						try {
+							mNext = DeadLetter.fromJson(line);
+						} catch (RuntimeException e) {
+							LOGGER.log(Level.WARNING, "Skipped invalid dead letter " + line, e);
+						}
+					}
+					return true;
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public DeadLetter next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final DeadLetter next = mNext;
+				mNext = null;
+				return next;
+			}
+		};
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.riversun.fcm.FcmClient.PreparedRequest;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+
+/**
+ * Pipeline to push messages continuously<br>
+ * <p>
+ * Messages submitted to the pipeline are sent by background threads and the
+ * responses are delivered to the {@link Listener}.
+ * <p>
+ * The pipeline holds at most <code>capacity</code> messages, including
+ * messages being sent and responses waiting to be delivered in order. When
+ * the pipeline is full, {@link #submit(EntityMessage)} blocks and
+ * {@link #offer(EntityMessage)} returns false, so that slow FCM responses or a
+ * slow listener push back to the upstream consumer. Use
+ * {@link #remainingCapacity()} as the demand signal when pulling from a
+ * queue.
+ * <p>
+ * Messages with more tokens than the batch size of the client (see
+ * {@link FcmClient#setAdaptiveBatchSizer(AdaptiveBatchSizer)}) are split into
+ * multiple requests.
+ * <p>
+ * Until closed, the pipeline is counted in and drained by the
+ * {@link FcmClientMXBean} of the client.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class PushPipeline implements ManagedQueue {
+
+	private static final Logger LOGGER = Logger.getLogger(PushPipeline.class.getName());
+
+	/**
+	 * Receives responses from the pipeline
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public interface Listener {
+
+		/**
+		 * Called for each request sent for the message
+		 * <p>
+		 * Called from a sending thread. In ordered mode calls are serialized.
+		 * 
+		 * @param msg
+		 *            submitted message
+		 * @param registrationTokens
+		 *            tokens of the request in the same order as the results in
+		 *            the response, without tokens dropped as duplicates by
+		 *            the dedup cache
+		 * @param response
+		 *            response from FCM, or null if the request could not be
+		 *            made
+		 */
+		public void onResponse(EntityMessage msg, List<String> registrationTokens, FcmResponse response);
+	}
+
+	private final FcmClient mClient;
+	private final Listener mListener;
+	private final boolean mOrdered;
+	private final int mCapacity;
+
+	private final Semaphore mPermits;
+	private final ThreadPoolExecutor mExecutor;
+
+	// for ordered mode
+	private final Object mEmitLock = new Object();
+	private final Map<Long, Runnable> mPendingEmissions = new HashMap<Long, Runnable>();
+	private long mNextSequence = 0;
+	private long mNextEmission = 0;
+
+	// tokens of messages submitted and not sent yet
+	private final AtomicInteger mPendingTokens = new AtomicInteger();
+
+	private volatile boolean mClosed = false;
+
+	/**
+	 * 
+	 * @param client
+	 * @param maxInFlightRequests
+	 *            number of messages sent concurrently
+	 * @param capacity
+	 *            max number of messages held by the pipeline, must be equal
+	 *            to or greater than maxInFlightRequests
+	 * @param ordered
+	 *            if true, responses are delivered in the order messages were
+	 *            submitted. Otherwise in the order of completion.
+	 * @param listener
+	 */
+	public PushPipeline(FcmClient client, int maxInFlightRequests, int capacity, boolean ordered, Listener listener) {
+		if (maxInFlightRequests <= 0) {
+			throw new IllegalArgumentException("maxInFlightRequests must be positive");
+		}
+		if (capacity < maxInFlightRequests) {
+			throw new IllegalArgumentException("capacity must be equal to or greater than maxInFlightRequests");
+		}
+		mClient = client;
+		mListener = listener;
+		mOrdered = ordered;
+		mCapacity = capacity;
+		mPermits = new Semaphore(capacity);
+		mExecutor = new ThreadPoolExecutor(maxInFlightRequests, maxInFlightRequests, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new FcmClient.SenderThreadFactory());
+		client.addManagedQueue(this);
+	}
+
+	/**
+	 * Submit the message, waiting while the pipeline is full
+	 * <p>
+	 * The message is serialized before this method returns, so it can be
+	 * modified afterwards. If a dead letter sink is set, do not modify it until
+	 * its response is delivered, because it is encoded again for tokens with
+	 * retryable errors (see {@link FcmClient#setDeadLetterSink(DeadLetterSink)}).
+	 * 
+	 * @param msg
+	 * @throws InterruptedException
+	 * @throws IllegalArgumentException
+	 *             if the message has no registration token
+	 * @throws IllegalStateException
+	 *             if the pipeline is closed or the payload exceeds the
+	 *             FCM limit
+	 */
+	public void submit(EntityMessage msg) throws InterruptedException {
+		final List<PreparedRequest> requests = prepare(msg);
+		try {
+			mPermits.acquire();
+		} catch (InterruptedException e) {
+			cancel(requests);
+			throw e;
+		}
+		enqueue(msg, requests);
+	}
+
+	/**
+	 * Submit the message if the pipeline is not full
+	 * 
+	 * @param msg
+	 * @return false if the pipeline is full
+	 * @throws IllegalArgumentException
+	 *             if the message has no registration token
+	 * @throws IllegalStateException
+	 *             if the pipeline is closed or the payload exceeds the
+	 *             FCM limit
+	 */
+	public boolean offer(EntityMessage msg) {
+		final List<PreparedRequest> requests = prepare(msg);
+		if (!mPermits.tryAcquire()) {
+			cancel(requests);
+			return false;
+		}
+		enqueue(msg, requests);
+		return true;
+	}
+
+	/**
+	 * Returns number of messages that can be submitted without blocking
+	 * 
+	 * @return
+	 */
+	public int remainingCapacity() {
+		return mPermits.availablePermits();
+	}
+
+	/**
+	 * Returns number of messages held by the pipeline
+	 * 
+	 * @return
+	 */
+	public int getPendingCount() {
+		return mCapacity - mPermits.availablePermits();
+	}
+
+	/**
+	 * Returns number of registration tokens of the messages not sent yet
+	 * 
+	 * @return
+	 */
+	@Override
+	public int getPendingTokenCount() {
+		return mPendingTokens.get();
+	}
+
+	/**
+	 * Discard messages waiting to be sent
+	 * <p>
+	 * Messages being sent are not affected. The listener is called with null
+	 * responses for the discarded messages.
+	 * 
+	 * @return number of registration tokens of the discarded messages
+	 */
+	@Override
+	public int drain() {
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		mExecutor.getQueue().drainTo(tasks);
+		int drained = 0;
+		for (Runnable task : tasks) {
+			final SendTask sendTask = (SendTask) task;
+			drained += sendTask.mNumOfTokens;
+			sendTask.discard();
+		}
+		return drained;
+	}
+
+	/**
+	 * Stop accepting messages and wait until all held messages are delivered
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return false if timed out
+	 * @throws InterruptedException
+	 */
+	public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+		mClosed = true;
+		mClient.removeManagedQueue(this);
+		mExecutor.shutdown();
+		return mExecutor.awaitTermination(timeout, unit);
+	}
+
+	private List<PreparedRequest> prepare(EntityMessage msg) {
+		if (mClosed) {
+			throw new IllegalStateException("pipeline is closed");
+		}
+
+		final List<String> tokenList = msg.getRegistrationTokenList();
+		if (tokenList.isEmpty()) {
+			// would complete without a response to deliver
+			throw new IllegalArgumentException("message has no registration token");
+		}
+		final List<PreparedRequest> requests = new ArrayList<PreparedRequest>();
+
+		final int batchSize = mClient.getBatchSize();
+		try {
+			for (int from = 0; from < tokenList.size(); from += batchSize) {
+				final int to = Math.min(from + batchSize, tokenList.size());
+				final List<String> chunk = new ArrayList<String>(tokenList.subList(from, to));
+				requests.add(mClient.prepare(msg, chunk));
+			}
+		} catch (RuntimeException e) {
+			cancel(requests);
+			throw e;
+		}
+		return requests;
+	}
+
+	/**
+	 * Forget the tokens of requests that will not be sent in the dedup cache
+	 */
+	private void cancel(List<PreparedRequest> requests) {
+		for (PreparedRequest request : requests) {
+			mClient.cancel(request);
+		}
+	}
+
+	private void enqueue(EntityMessage msg, List<PreparedRequest> requests) {
+
+		final long sequence;
+		synchronized (mEmitLock) {
+			sequence = mNextSequence++;
+		}
+
+		final SendTask task = new SendTask(sequence, msg, requests);
+		mPendingTokens.addAndGet(task.mNumOfTokens);
+		try {
+			mExecutor.execute(task);
+		} catch (RuntimeException e) {
+			// rejected after close
+			mPendingTokens.addAndGet(-task.mNumOfTokens);
+			cancel(requests);
+			emit(sequence, new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			throw new IllegalStateException("pipeline is closed", e);
+		}
+	}
+
+	private class SendTask implements Runnable {
+
+		private final long mSequence;
+		private final EntityMessage mMsg;
+		private final List<PreparedRequest> mRequests;
+		private final int mNumOfTokens;
+
+		SendTask(long sequence, EntityMessage msg, List<PreparedRequest> requests) {
+			mSequence = sequence;
+			mMsg = msg;
+			mRequests = requests;
+			int numOfTokens = 0;
+			for (PreparedRequest request : requests) {
+				numOfTokens += request.registrationTokens.size();
+			}
+			mNumOfTokens = numOfTokens;
+		}
+
+		@Override
+		public void run() {
+			final List<FcmResponse> responses = new ArrayList<FcmResponse>(mRequests.size());
+			for (PreparedRequest request : mRequests) {
+				FcmResponse response = null;
+				try {
+					response = mClient.send(request);
+					mClient.recordBatch(request.registrationTokens.size(), response);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Error occurred while sending message.", e);
+				}
+				responses.add(response);
+			}
+			complete(responses);
+		}
+
+		void discard() {
+			cancel(mRequests);
+			complete(Collections.<FcmResponse> nCopies(mRequests.size(), null));
+		}
+
+		private void complete(final List<FcmResponse> responses) {
+			mPendingTokens.addAndGet(-mNumOfTokens);
+			emit(mSequence, new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < mRequests.size(); i++) {
+						deliver(mMsg, mRequests.get(i).registrationTokens, responses.get(i));
+					}
+				}
+			});
+		}
+	}
+
+	private void emit(long sequence, Runnable emission) {
+
+		if (!mOrdered) {
+			try {
+				emission.run();
+			} finally {
+				mPermits.release();
+			}
+			return;
+		}
+
+		synchronized (mEmitLock) {
+			mPendingEmissions.put(sequence, emission);
+
+			// deliver contiguous responses from the head
+			Runnable next;
+			while ((next = mPendingEmissions.remove(mNextEmission)) != null) {
+				mNextEmission++;
+				try {
+					next.run();
+				} finally {
+					mPermits.release();
+				}
+			}
+		}
+	}
+
+	private void deliver(EntityMessage msg, List<String> registrationTokens, FcmResponse response) {
+		if (mListener == null) {
+			return;
+		}
+		try {
+			mListener.onResponse(msg, registrationTokens, response);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Error occurred in listener.", e);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.riversun.fcm.model.RequestTiming;
+
+/**
+ * Keeps the slowest requests in memory<br>
+ * <p>
+ * Holds at most <code>maxEntries</code> requests. When full, a request is
+ * recorded only if it is slower than the fastest one kept, which is then
+ * evicted. The check for fast requests is a single comparison.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class SlowRequestLog {
+
+	/**
+	 * Recorded request
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public static class SlowRequest {
+
+		private final long mTimestamp;
+		private final String mEndpoint;
+		private final int mHttpResponseCode;
+		private final RequestTiming mTiming;
+		private final Map<String, List<String>> mResponseHeaders;
+
+		SlowRequest(long timestamp, String endpoint, int httpResponseCode, RequestTiming timing, Map<String, List<String>> responseHeaders) {
+			mTimestamp = timestamp;
+			mEndpoint = endpoint;
+			mHttpResponseCode = httpResponseCode;
+			mTiming = timing;
+			mResponseHeaders = responseHeaders;
+		}
+
+		/**
+		 * Returns the time the request was recorded in milliseconds since
+		 * epoch
+		 * 
+		 * @return
+		 */
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		public String getEndpoint() {
+			return mEndpoint;
+		}
+
+		/**
+		 * Returns HTTP response code, or -1 if no response was received
+		 * 
+		 * @return
+		 */
+		public int getHttpResponseCode() {
+			return mHttpResponseCode;
+		}
+
+		public RequestTiming getTiming() {
+			return mTiming;
+		}
+
+		public Map<String, List<String>> getResponseHeaders() {
+			return mResponseHeaders;
+		}
+
+		@Override
+		public String toString() {
+			return "SlowRequest [timestamp=" + mTimestamp + ", endpoint=" + mEndpoint + ", httpResponseCode=" + mHttpResponseCode + ", timing=" + mTiming + ", responseHeaders="
+					+ mResponseHeaders + "]";
+		}
+	}
+
+	private static final Comparator<SlowRequest> FASTEST_FIRST = new Comparator<SlowRequest>() {
+		@Override
+		public int compare(SlowRequest o1, SlowRequest o2) {
+			return Long.compare(o1.mTiming.getTotalNanos(), o2.mTiming.getTotalNanos());
+		}
+	};
+
+	private final int mMaxEntries;
+	private final PriorityQueue<SlowRequest> mQueue;
+
+	// total time of the fastest kept request, readable without lock
+	private volatile long mThresholdNanos = 0;
+
+	/**
+	 * 
+	 * @param maxEntries
+	 *            number of requests to keep
+	 */
+	public SlowRequestLog(int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		mMaxEntries = maxEntries;
+		mQueue = new PriorityQueue<SlowRequest>(maxEntries, FASTEST_FIRST);
+	}
+
+	/**
+	 * Returns true if a request that took specified time would be recorded
+	 * 
+	 * @param totalNanos
+	 * @return
+	 */
+	public boolean isCandidate(long totalNanos) {
+		return totalNanos > mThresholdNanos;
+	}
+
+	/**
+	 * Record the request if it is slow enough
+	 * 
+	 * @param endpoint
+	 * @param httpResponseCode
+	 * @param timing
+	 * @param responseHeaders
+	 */
+	public synchronized void record(String endpoint, int httpResponseCode, RequestTiming timing, Map<String, List<String>> responseHeaders) {
+
+		if (!isCandidate(timing.getTotalNanos())) {
+			return;
+		}
+
+		final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+		if (responseHeaders != null) {
+			headers.putAll(responseHeaders);
+		}
+
+		mQueue.add(new SlowRequest(System.currentTimeMillis(), endpoint, httpResponseCode, timing, Collections.unmodifiableMap(headers)));
+		if (mQueue.size() > mMaxEntries) {
+			mQueue.poll();
+		}
+		if (mQueue.size() == mMaxEntries) {
+			mThresholdNanos = mQueue.peek().mTiming.getTotalNanos();
+		}
+	}
+
+	/**
+	 * Returns recorded requests, the slowest first
+	 * 
+	 * @return
+	 */
+	public synchronized List<SlowRequest> getSlowRequests() {
+		final List<SlowRequest> list = new ArrayList<SlowRequest>(mQueue);
+		Collections.sort(list, Collections.reverseOrder(FASTEST_FIRST));
+		return list;
+	}
+
+	/**
+	 * Remove all recorded requests
+	 */
+	public synchronized void clear() {
+		mQueue.clear();
+		mThresholdNanos = 0;
+	}
+
+	public int getMaxEntries() {
+		return mMaxEntries;
+	}
+}
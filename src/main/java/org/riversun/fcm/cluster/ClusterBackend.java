@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.cluster;
+
+import java.io.IOException;
+import java.util.SortedSet;
+
+/**
+ * Shared membership store of the nodes sending to the same FCM project<br>
+ * <p>
+ * Each node holds a lease that expires unless renewed. Implement this
+ * interface to coordinate through a shared store like a database or a
+ * key-value store.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public interface ClusterBackend {
+
+	/**
+	 * Register the node or renew its lease
+	 * 
+	 * @param nodeId
+	 * @param leaseMillis
+	 *            how long the node is considered alive without renewal
+	 * @return ids of the live nodes including the specified node
+	 * @throws IOException
+	 *             if the store is not reachable
+	 */
+	public SortedSet<String> renew(String nodeId, long leaseMillis) throws IOException;
+
+	/**
+	 * Remove the node before its lease expires
+	 * 
+	 * @param nodeId
+	 * @throws IOException
+	 *             if the store is not reachable
+	 */
+	public void leave(String nodeId) throws IOException;
+}
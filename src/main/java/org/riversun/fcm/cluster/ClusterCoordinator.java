@@ -0,0 +1,330 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.SortedSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.riversun.fcm.FcmClient;
+import org.riversun.fcm.FcmClientMXBean;
+
+/**
+ * Coordinates the nodes sending to the same FCM project<br>
+ * <p>
+ * Each node holds a lease in the {@link ClusterBackend} and renews it
+ * periodically. From the live nodes the coordinator derives:
+ * <ul>
+ * <li>the rate budget of this node, an equal slice of the global rate, which
+ * is applied to the client with
+ * {@link FcmClientMXBean#setMaxRequestsPerSecond(double)}</li>
+ * <li>the {@link ShardAssignment} of this node, a consistent-hash shard of
+ * the token space</li>
+ * </ul>
+ * Both are rebalanced when nodes join or leave. If the lease cannot be
+ * renewed before it expires, the other nodes take over its budget, so the
+ * client is suspended with {@link FcmClient#setSuspended(boolean)} until the
+ * lease is renewed again. A pause by an operator is left as it is.
+ * <p>
+ * If an operator changes the rate limit of the client, the coordinator stops
+ * applying its budget to the client until
+ * {@link #setGlobalRequestsPerSecond(double)} is called, and does not restore
+ * the rate on {@link #stop()}.
+ * <p>
+ * Each node sees a membership change when it renews its own lease, so nodes
+ * do not switch assignments at the same moment. Take one assignment for the
+ * whole send and check the epoch afterwards. A send is exact only if every
+ * node used the same epoch. Otherwise, during a join or leave, a token may be
+ * sent by two nodes or by none, and the tokens of a node that died mid-send
+ * are not sent by anyone, so a single run delivers at most once. For at least
+ * once delivery, run the send again on every node with the new assignment,
+ * for example by resuming a {@link org.riversun.fcm.Campaign}.
+ * 
+ * <pre>
+ * ClusterCoordinator coordinator = new ClusterCoordinator(client, backend, "node-1", 500, 10000);
+ * coordinator.start();
+ * ShardAssignment assignment = coordinator.getAssignment();
+ * client.pushToAudience(msg, assignment.filter(allTokens), listener);
+ * if (!coordinator.isCurrent(assignment)) {
+ *     // membership changed during the send
+ * }
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class ClusterCoordinator {
+
+	private static final Logger LOGGER = Logger.getLogger(ClusterCoordinator.class.getName());
+
+	private final FcmClient mClient;
+	private final ClusterBackend mBackend;
+	private final String mNodeId;
+	private final long mLeaseMillis;
+
+	private volatile double mGlobalRequestsPerSecond;
+	private volatile double mRateBudget;
+	private volatile ShardAssignment mAssignment;
+
+	private ScheduledExecutorService mScheduler;
+	private long mLeaseExpiresAtMillis;
+	private int mNumOfNodes;
+	private double mOriginalRate;
+	// rate last set by this coordinator, NaN while an operator has overridden it
+	private double mAppliedRate = Double.NaN;
+	private boolean mSuspended = false;
+
+	/**
+	 * 
+	 * @param client
+	 *            client on this node
+	 * @param backend
+	 * @param nodeId
+	 *            unique id of this node in the cluster
+	 * @param globalRequestsPerSecond
+	 *            max number of requests per second of the whole cluster, 0
+	 *            means unlimited
+	 * @param leaseMillis
+	 *            how long this node is considered alive without renewal. The
+	 *            lease is renewed every third of it.
+	 */
+	public ClusterCoordinator(FcmClient client, ClusterBackend backend, String nodeId, double globalRequestsPerSecond, long leaseMillis) {
+		if (nodeId == null || nodeId.isEmpty()) {
+			throw new IllegalArgumentException("nodeId must not be empty");
+		}
+		if (globalRequestsPerSecond < 0) {
+			throw new IllegalArgumentException("globalRequestsPerSecond must not be negative");
+		}
+		if (leaseMillis <= 0) {
+			throw new IllegalArgumentException("leaseMillis must be positive");
+		}
+		mClient = client;
+		mBackend = backend;
+		mNodeId = nodeId;
+		mGlobalRequestsPerSecond = globalRequestsPerSecond;
+		mLeaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Join the cluster and start renewing the lease
+	 * 
+	 * @throws IOException
+	 *             if the backend is not reachable
+	 */
+	public synchronized void start() throws IOException {
+		if (mScheduler != null) {
+			return;
+		}
+		mOriginalRate = mClient.getMXBean().getMaxRequestsPerSecond();
+		mAppliedRate = mOriginalRate;
+		refresh();
+
+		mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "fcm-cluster-" + mNodeId);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long intervalMillis = Math.max(1, mLeaseMillis / 3);
+		mScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ClusterCoordinator.this) {
+					if (mScheduler == null) {
+						// stopped while waiting
+						return;
+					}
+					try {
+						refresh();
+					} catch (IOException | RuntimeException e) {
+						onRenewalFailed(e);
+					}
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Leave the cluster
+	 * <p>
+	 * The rate limit of the client is restored to the value before
+	 * {@link #start()}, unless an operator has changed it since.
+	 * 
+	 * @throws IOException
+	 *             if the backend is not reachable. The lease of this node
+	 *             expires in time anyway.
+	 */
+	public synchronized void stop() throws IOException {
+		if (mScheduler == null) {
+			return;
+		}
+		mScheduler.shutdownNow();
+		mScheduler = null;
+
+		if (mSuspended) {
+			mSuspended = false;
+			mClient.setSuspended(false);
+		}
+		if (ownsRate()) {
+			mClient.getMXBean().setMaxRequestsPerSecond(mOriginalRate);
+		}
+		mAppliedRate = Double.NaN;
+		mAssignment = null;
+		mBackend.leave(mNodeId);
+	}
+
+	/**
+	 * Renew the lease now and rebalance if the membership has changed
+	 * 
+	 * @throws IOException
+	 *             if the backend is not reachable
+	 */
+	public synchronized void refresh() throws IOException {
+		final long renewedAtMillis = System.currentTimeMillis();
+		final SortedSet<String> nodes = mBackend.renew(mNodeId, mLeaseMillis);
+		mLeaseExpiresAtMillis = renewedAtMillis + mLeaseMillis;
+
+		final ShardAssignment assignment = mAssignment;
+		if (assignment == null || !assignment.getNodes().equals(new ArrayList<String>(nodes))) {
+			LOGGER.info("Cluster membership of " + mNodeId + " changed to " + nodes);
+			mAssignment = new ShardAssignment(mNodeId, new ConsistentHashRing(nodes));
+		}
+		mNumOfNodes = nodes.size();
+		applyRateBudget();
+
+		if (mSuspended) {
+			mSuspended = false;
+			LOGGER.info("Lease of " + mNodeId + " renewed, resuming sends");
+			mClient.setSuspended(false);
+		}
+	}
+
+	/**
+	 * Set max number of requests per second of the whole cluster
+	 * <p>
+	 * Applied to this node only; set the same value on every node. The budget
+	 * is applied to the client again even if an operator has changed its rate
+	 * limit.
+	 * 
+	 * @param globalRequestsPerSecond
+	 *            0 means unlimited
+	 */
+	public synchronized void setGlobalRequestsPerSecond(double globalRequestsPerSecond) {
+		if (globalRequestsPerSecond < 0) {
+			throw new IllegalArgumentException("globalRequestsPerSecond must not be negative");
+		}
+		mGlobalRequestsPerSecond = globalRequestsPerSecond;
+		if (mScheduler != null) {
+			mAppliedRate = mClient.getMXBean().getMaxRequestsPerSecond();
+			applyRateBudget();
+		}
+	}
+
+	public double getGlobalRequestsPerSecond() {
+		return mGlobalRequestsPerSecond;
+	}
+
+	/**
+	 * Returns max number of requests per second assigned to this node
+	 * 
+	 * @return
+	 */
+	public double getRateBudget() {
+		return mRateBudget;
+	}
+
+	/**
+	 * Returns the shard of this node for the current membership
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             if not started
+	 */
+	public ShardAssignment getAssignment() {
+		final ShardAssignment assignment = mAssignment;
+		if (assignment == null) {
+			throw new IllegalStateException("coordinator is not started");
+		}
+		return assignment;
+	}
+
+	/**
+	 * Returns true if the assignment is of the current membership as last
+	 * seen by this node
+	 * 
+	 * @param assignment
+	 *            assignment taken at the beginning of a send
+	 * @return
+	 */
+	public boolean isCurrent(ShardAssignment assignment) {
+		final ShardAssignment current = mAssignment;
+		return current != null && current.getEpoch() == assignment.getEpoch();
+	}
+
+	public String getNodeId() {
+		return mNodeId;
+	}
+
+	private void applyRateBudget() {
+		mRateBudget = mGlobalRequestsPerSecond / mNumOfNodes;
+		if (!ownsRate()) {
+			return;
+		}
+		mClient.getMXBean().setMaxRequestsPerSecond(mRateBudget);
+		mAppliedRate = mRateBudget;
+	}
+
+	/**
+	 * Returns false once the rate limit of the client has been changed by
+	 * someone other than this coordinator
+	 */
+	private boolean ownsRate() {
+		if (Double.isNaN(mAppliedRate)) {
+			return false;
+		}
+		if (mClient.getMXBean().getMaxRequestsPerSecond() != mAppliedRate) {
+			LOGGER.info("Rate limit of " + mNodeId + " was changed by an operator, no longer applying the cluster budget");
+			mAppliedRate = Double.NaN;
+			return false;
+		}
+		return true;
+	}
+
+	private void onRenewalFailed(Exception e) {
+		LOGGER.log(Level.WARNING, "Failed to renew lease of " + mNodeId, e);
+
+		if (!mSuspended && System.currentTimeMillis() >= mLeaseExpiresAtMillis) {
+			// other nodes may have taken over the budget of this node
+			mSuspended = true;
+			LOGGER.warning("Lease of " + mNodeId + " expired, suspending sends");
+			mClient.setSuspended(true);
+		}
+	}
+}
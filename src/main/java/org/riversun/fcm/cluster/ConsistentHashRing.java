@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring that maps registration tokens to nodes<br>
+ * <p>
+ * Each node is placed on the ring at {@value #VIRTUAL_NODES} points, and a
+ * token belongs to the node of the first point at or after the hash of the
+ * token. When a node joins or leaves, only the tokens of the points next to
+ * it move, and the others stay on the same node.
+ * <p>
+ * The ring depends only on the set of node ids, so nodes that see the same
+ * membership agree on the owner of every token.
+ * <p>
+ * This class is immutable.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public final class ConsistentHashRing {
+
+	/**
+	 * Number of points per node
+	 */
+	public static final int VIRTUAL_NODES = 128;
+
+	private final List<String> mNodes;
+
+	// sorted hashes and their nodes
+	private final long[] mPoints;
+	private final String[] mOwners;
+
+	/**
+	 * 
+	 * @param nodeIds
+	 *            must not be empty
+	 */
+	public ConsistentHashRing(Collection<String> nodeIds) {
+		if (nodeIds.isEmpty()) {
+			throw new IllegalArgumentException("nodeIds must not be empty");
+		}
+		mNodes = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(nodeIds)));
+
+		final int numOfPoints = mNodes.size() * VIRTUAL_NODES;
+		final long[] hashes = new long[numOfPoints];
+		final Integer[] order = new Integer[numOfPoints];
+		for (int point = 0; point < numOfPoints; point++) {
+			hashes[point] = hash(mNodes.get(point / VIRTUAL_NODES) + "#" + (point % VIRTUAL_NODES));
+			order[point] = point;
+		}
+
+		// sort points by hash in unsigned order
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compareUnsigned(hashes[a], hashes[b]);
+			}
+		});
+
+		mPoints = new long[numOfPoints];
+		mOwners = new String[numOfPoints];
+		for (int i = 0; i < numOfPoints; i++) {
+			mPoints[i] = hashes[order[i]];
+			mOwners[i] = mNodes.get(order[i] / VIRTUAL_NODES);
+		}
+	}
+
+	/**
+	 * Returns the node that owns the registration token
+	 * 
+	 * @param registrationToken
+	 * @return
+	 */
+	public String getOwner(String registrationToken) {
+		final long h = hash(registrationToken);
+
+		// first point at or after h, unsigned order
+		int low = 0;
+		int high = mPoints.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (Long.compareUnsigned(mPoints[mid], h) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return mOwners[low == mPoints.length ? 0 : low];
+	}
+
+	/**
+	 * Returns node ids in sorted order
+	 * 
+	 * @return
+	 */
+	public List<String> getNodes() {
+		return mNodes;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 bytes followed by a finalizer, so that
+	 * similar tokens spread over the ring
+	 */
+	static long hash(String text) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
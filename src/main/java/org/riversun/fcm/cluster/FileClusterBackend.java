@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.cluster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * {@link ClusterBackend} backed by a local file, for nodes running on the
+ * same host<br>
+ * <p>
+ * The file contains a line per node like <code>node-1\t1500000000000</code>
+ * (node id and expiration time in milliseconds since epoch). Each operation
+ * reads and rewrites the file while holding an exclusive file lock, so
+ * processes sharing the file see a consistent view.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class FileClusterBackend implements ClusterBackend {
+
+	// file locks are held on behalf of the whole JVM and overlapping locks
+	// throw, so threads in the same JVM are serialized here
+	private static final Object JVM_LOCK = new Object();
+
+	private final Path mFile;
+
+	/**
+	 * 
+	 * @param file
+	 *            created if not exists
+	 */
+	public FileClusterBackend(Path file) {
+		mFile = file;
+	}
+
+	public Path getFile() {
+		return mFile;
+	}
+
+	@Override
+	public SortedSet<String> renew(String nodeId, long leaseMillis) throws IOException {
+		checkNodeId(nodeId);
+
+		synchronized (JVM_LOCK) {
+			return renewLocked(nodeId, leaseMillis);
+		}
+	}
+
+	@Override
+	public void leave(String nodeId) throws IOException {
+		checkNodeId(nodeId);
+
+		synchronized (JVM_LOCK) {
+			leaveLocked(nodeId);
+		}
+	}
+
+	private SortedSet<String> renewLocked(String nodeId, long leaseMillis) throws IOException {
+		final FileChannel channel = open();
+		try {
+			channel.lock();
+
+			final long now = System.currentTimeMillis();
+			final Map<String, Long> leases = read(channel);
+			leases.put(nodeId, now + leaseMillis);
+
+			for (Iterator<Long> it = leases.values().iterator(); it.hasNext();) {
+				if (it.next() <= now) {
+					it.remove();
+				}
+			}
+			write(channel, leases);
+			return new TreeSet<String>(leases.keySet());
+		} finally {
+			// releases the lock
+			channel.close();
+		}
+	}
+
+	private void leaveLocked(String nodeId) throws IOException {
+		final FileChannel channel = open();
+		try {
+			channel.lock();
+
+			final Map<String, Long> leases = read(channel);
+			if (leases.remove(nodeId) != null) {
+				write(channel, leases);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private FileChannel open() throws IOException {
+		return FileChannel.open(mFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static Map<String, Long> read(FileChannel channel) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+		channel.position(0);
+		while (buf.hasRemaining() && channel.read(buf) >= 0) {
+		}
+
+		final Map<String, Long> leases = new TreeMap<String, Long>();
+		final String text = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+		for (String line : text.split("\n")) {
+			final int tab = line.indexOf('\t');
+			if (tab <= 0) {
+				continue;
+			}
+			try {
+				leases.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1).trim()));
+			} catch (NumberFormatException e) {
+				// skip broken line
+			}
+		}
+		return leases;
+	}
+
+	private static void write(FileChannel channel, Map<String, Long> leases) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : leases.entrySet()) {
+			sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+		}
+		final ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+		channel.truncate(0);
+		channel.position(0);
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		channel.force(false);
+	}
+
+	private static void checkNodeId(String nodeId) {
+		if (nodeId == null || nodeId.isEmpty() || nodeId.indexOf('\t') >= 0 || nodeId.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("nodeId must not be empty or contain tabs or line breaks");
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.cluster;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * {@link ClusterBackend} shared by the nodes in the same JVM, mainly for tests
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class InMemoryClusterBackend implements ClusterBackend {
+
+	// node id to expiration time
+	private final Map<String, Long> mLeases = new HashMap<String, Long>();
+
+	@Override
+	public synchronized SortedSet<String> renew(String nodeId, long leaseMillis) {
+		final long now = System.currentTimeMillis();
+		mLeases.put(nodeId, now + leaseMillis);
+
+		for (Iterator<Long> it = mLeases.values().iterator(); it.hasNext();) {
+			if (it.next() <= now) {
+				it.remove();
+			}
+		}
+		return new TreeSet<String>(mLeases.keySet());
+	}
+
+	@Override
+	public synchronized void leave(String nodeId) {
+		mLeases.remove(nodeId);
+	}
+}
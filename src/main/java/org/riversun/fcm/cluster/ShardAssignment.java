@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Shard of the token space assigned to a node for a membership of the
+ * cluster<br>
+ * <p>
+ * Take an assignment at the beginning of a campaign and use it until the
+ * campaign ends. Every token of the audience is owned by exactly one node of
+ * the membership, so nodes that filter the same audience with assignments of
+ * the same {@link #getEpoch() epoch} send each token once. Nodes whose epochs
+ * differ may both send or both skip a token.
+ * <p>
+ * This class is immutable.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public final class ShardAssignment {
+
+	private final String mNodeId;
+	private final ConsistentHashRing mRing;
+	private final long mEpoch;
+
+	ShardAssignment(String nodeId, ConsistentHashRing ring) {
+		mNodeId = nodeId;
+		mRing = ring;
+		mEpoch = epoch(ring.getNodes());
+	}
+
+	public String getNodeId() {
+		return mNodeId;
+	}
+
+	/**
+	 * Returns ids of the nodes in the membership in sorted order
+	 * 
+	 * @return
+	 */
+	public List<String> getNodes() {
+		return mRing.getNodes();
+	}
+
+	/**
+	 * Returns the id of the membership, equal on every node that sees the same
+	 * set of nodes
+	 * <p>
+	 * Compare the epochs of all nodes after a send to know whether the
+	 * audience was partitioned exactly.
+	 * 
+	 * @return
+	 */
+	public long getEpoch() {
+		return mEpoch;
+	}
+
+	/**
+	 * Returns true if the registration token belongs to this node
+	 * 
+	 * @param registrationToken
+	 * @return
+	 */
+	public boolean owns(String registrationToken) {
+		return mNodeId.equals(mRing.getOwner(registrationToken));
+	}
+
+	/**
+	 * Returns the node that owns the registration token
+	 * 
+	 * @param registrationToken
+	 * @return
+	 */
+	public String getOwner(String registrationToken) {
+		return mRing.getOwner(registrationToken);
+	}
+
+	/**
+	 * Returns an iterator over the tokens that belong to this node
+	 * <p>
+	 * Pass it to
+	 * {@link org.riversun.fcm.FcmClient#pushToAudience(org.riversun.fcm.model.EntityMessage, Iterator, org.riversun.fcm.AudienceListener)}
+	 * on every node with the whole audience.
+	 * 
+	 * @param registrationTokens
+	 *            whole audience
+	 * @return
+	 */
+	public Iterator<String> filter(final Iterator<String> registrationTokens) {
+		return new Iterator<String>() {
+
+			private String mNext;
+
+			@Override
+			public boolean hasNext() {
+				while (mNext == null && registrationTokens.hasNext()) {
+					final String registrationToken = registrationTokens.next();
+					if (owns(registrationToken)) {
+						mNext = registrationToken;
+					}
+				}
+				return mNext != null;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final String registrationToken = mNext;
+				mNext = null;
+				return registrationToken;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "ShardAssignment [nodeId=" + mNodeId + ", epoch=" + Long.toHexString(mEpoch) + ", nodes=" + getNodes() + "]";
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 bytes of the sorted node ids, each
+	 * followed by a separator
+	 */
+	private static long epoch(List<String> nodeIds) {
+		long h = 0xcbf29ce484222325L;
+		for (String nodeId : nodeIds) {
+			for (byte b : nodeId.getBytes(StandardCharsets.UTF_8)) {
+				h = (h ^ (b & 0xff)) * 0x100000001b3L;
+			}
+			h = (h ^ 0xff) * 0x100000001b3L;
+		}
+		return h;
+	}
+}
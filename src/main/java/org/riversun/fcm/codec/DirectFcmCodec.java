@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.codec;
+
+import java.util.List;
+
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.Notification;
+
+/**
+ * Codec writing requests directly into UTF-8 bytes<br>
+ * <p>
+ * No intermediate JSONObject or String is built for the request, and the
+ * buffer is sized up front from the payload size accounted by the message.
+ * Responses are scanned lazily by {@link FcmResponse#FcmResponse(int, byte[])}.
+ * <p>
+ * This is the default codec.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class DirectFcmCodec implements FcmCodec {
+
+	public static final String NAME = "direct";
+
+	// FCM registration tokens are about 150 chars
+	private static final int ESTIMATED_TOKEN_SIZE = 160;
+
+	// keys and values of the options
+	private static final int ESTIMATED_OPTIONS_SIZE = 160;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getPriority() {
+		return 100;
+	}
+
+	@Override
+	public byte[] encode(EntityMessage msg, List<String> registrationTokens) {
+
+		if (!msg.fitsLimit()) {
+			throw new IllegalStateException("payload is " + msg.getPayloadSize() + " bytes, exceeds the limit of " + EntityMessage.MAX_PAYLOAD_SIZE + " bytes");
+		}
+
+		final JsonWriter out = new JsonWriter(msg.getPayloadSize() + registrationTokens.size() * ESTIMATED_TOKEN_SIZE + ESTIMATED_OPTIONS_SIZE);
+
+		out.writeByte('{');
+		out.writeName("registration_ids").writeStringArray(registrationTokens);
+
+		// fields not set are skipped to keep the request small
+		if (!msg.getDataMap().isEmpty()) {
+			out.writeByte(',').writeName("data").writeObject(msg.getDataMap());
+		}
+		if (msg.getNotification() != null) {
+			out.writeByte(',').writeName("notification");
+			writeNotification(out, msg.getNotification());
+		}
+		if (msg.getPriority() != null) {
+			out.writeByte(',').writeName("priority").writeQuoted(msg.getPriority().getValue());
+		}
+		if (msg.getTimeToLive() != null) {
+			out.writeByte(',').writeName("time_to_live").writeInt(msg.getTimeToLive().intValue());
+		}
+		if (msg.getContentAvailable() != null) {
+			out.writeByte(',').writeName("content_available").writeBoolean(msg.getContentAvailable().booleanValue());
+		}
+		if (msg.getMutableContent() != null) {
+			out.writeByte(',').writeName("mutable_content").writeBoolean(msg.getMutableContent().booleanValue());
+		}
+		if (msg.getDryRun() != null) {
+			out.writeByte(',').writeName("dry_run").writeBoolean(msg.getDryRun().booleanValue());
+		}
+		out.writeByte('}');
+
+		return out.toByteArray();
+	}
+
+	@Override
+	public FcmResponse decode(int httpResponseCode, byte[] body) {
+		return new FcmResponse(httpResponseCode, body);
+	}
+
+	private static void writeNotification(JsonWriter out, Notification notification) {
+		out.writeByte('{');
+		boolean first = true;
+		first = writeIfPresent(out, first, "title", notification.getTitle());
+		first = writeIfPresent(out, first, "body", notification.getBody());
+		first = writeIfPresent(out, first, "icon", notification.getIcon());
+		first = writeIfPresent(out, first, "sound", notification.getSound());
+		first = writeIfPresent(out, first, "badge", notification.getBadge());
+		first = writeIfPresent(out, first, "tag", notification.getTag());
+		first = writeIfPresent(out, first, "color", notification.getColor());
+		first = writeIfPresent(out, first, "click_action", notification.getClickAction());
+		first = writeIfPresent(out, first, "android_channel_id", notification.getAndroidChannelId());
+		first = writeIfPresent(out, first, "body_loc_key", notification.getBodyLocKey());
+		first = writeIfPresent(out, first, "body_loc_args", notification.getBodyLocArgs());
+		first = writeIfPresent(out, first, "title_loc_key", notification.getTitleLocKey());
+		first = writeIfPresent(out, first, "title_loc_args", notification.getTitleLocArgs());
+		out.writeByte('}');
+	}
+
+	private static boolean writeIfPresent(JsonWriter out, boolean first, String key, String value) {
+		if (value == null) {
+			return first;
+		}
+		if (!first) {
+			out.writeByte(',');
+		}
+		out.writeName(key).writeQuoted(value);
+		return false;
+	}
+
+	private static boolean writeIfPresent(JsonWriter out, boolean first, String key, List<String> values) {
+		if (values == null) {
+			return first;
+		}
+		if (!first) {
+			out.writeByte(',');
+		}
+		out.writeName(key).writeStringArray(values);
+		return false;
+	}
+}
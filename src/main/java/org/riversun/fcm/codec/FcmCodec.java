@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.codec;
+
+import java.util.List;
+
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+
+/**
+ * Encodes requests and decodes responses of the FCM HTTP API<br>
+ * <p>
+ * Implementations listed in
+ * <code>META-INF/services/org.riversun.fcm.codec.FcmCodec</code> are found
+ * by {@link FcmCodecs#getDefault()}, so an adapter for another JSON library
+ * can be added by putting it on the classpath.
+ * <p>
+ * Implementations must be thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public interface FcmCodec {
+
+	/**
+	 * Returns name to select the codec, like "fast"
+	 * 
+	 * @return
+	 */
+	public String getName();
+
+	/**
+	 * Returns priority of the codec, the codec with the highest priority on
+	 * the classpath is used by default
+	 * 
+	 * @return
+	 */
+	public int getPriority();
+
+	/**
+	 * Encode the message sent to the registration tokens as UTF-8 JSON
+	 * 
+	 * @param msg
+	 * @param registrationTokens
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the payload of the message exceeds the FCM limit
+	 */
+	public byte[] encode(EntityMessage msg, List<String> registrationTokens);
+
+	/**
+	 * Decode the UTF-8 JSON response body
+	 * 
+	 * @param httpResponseCode
+	 * @param body
+	 * @return
+	 * @throws org.json.JSONException
+	 *             if the body is not a JSON object
+	 */
+	public FcmResponse decode(int httpResponseCode, byte[] body);
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds {@link FcmCodec} implementations<br>
+ * <p>
+ * Built-in codecs are {@link DirectFcmCodec} and {@link OrgJsonFcmCodec}.
+ * Others are discovered with {@link ServiceLoader}. The default codec is the
+ * one with the highest priority, or the one named by the system property
+ * {@value #PROPERTY_CODEC}.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public final class FcmCodecs {
+
+	/**
+	 * System property to select the default codec by name
+	 */
+	public static final String PROPERTY_CODEC = "org.riversun.fcm.codec";
+
+	private static final Logger LOGGER = Logger.getLogger(FcmCodecs.class.getName());
+
+	private static volatile List<FcmCodec> sCodecs;
+
+	private FcmCodecs() {
+	}
+
+	/**
+	 * Returns the default codec
+	 * 
+	 * @return
+	 */
+	public static FcmCodec getDefault() {
+		final String name = System.getProperty(PROPERTY_CODEC);
+		if (name != null) {
+			final FcmCodec codec = get(name);
+			if (codec != null) {
+				return codec;
+			}
+			LOGGER.warning("codec '" + name + "' is not found, use the default");
+		}
+
+		FcmCodec best = null;
+		for (FcmCodec codec : getAll()) {
+			if (best == null || codec.getPriority() > best.getPriority()) {
+				best = codec;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the codec with the specified name, or null if not found
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static FcmCodec get(String name) {
+		for (FcmCodec codec : getAll()) {
+			if (codec.getName().equals(name)) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns built-in codecs and codecs discovered on the classpath
+	 * 
+	 * @return
+	 */
+	public static List<FcmCodec> getAll() {
+		List<FcmCodec> codecs = sCodecs;
+		if (codecs == null) {
+			// racing threads load the same list, so no lock is needed
+			codecs = load();
+			sCodecs = codecs;
+		}
+		return codecs;
+	}
+
+	private static List<FcmCodec> load() {
+		final List<FcmCodec> codecs = new ArrayList<FcmCodec>();
+		codecs.add(new DirectFcmCodec());
+		codecs.add(new OrgJsonFcmCodec());
+
+		final Iterator<FcmCodec> it = ServiceLoader.load(FcmCodec.class).iterator();
+		while (true) {
+			try {
+				if (!it.hasNext()) {
+					break;
+				}
+				codecs.add(it.next());
+			} catch (ServiceConfigurationError e) {
+				// a broken adapter must not break sending
+				LOGGER.log(Level.WARNING, "failed to load codec", e);
+			}
+		}
+		return Collections.unmodifiableList(codecs);
+	}
+}
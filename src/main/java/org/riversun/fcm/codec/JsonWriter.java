@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Writes JSON text directly into a UTF-8 byte array<br>
+ * <p>
+ * The escaping rules follow {@link JSONObject#quote(String)}, the same as
+ * {@link org.riversun.fcm.util.JsonSize}, so the size of the written payload
+ * matches the size accounted by the message.
+ * <p>
+ * Commas between members are written by the caller.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+final class JsonWriter {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+	private byte[] mBuf;
+	private int mSize;
+
+	JsonWriter(int initialCapacity) {
+		mBuf = new byte[Math.max(16, initialCapacity)];
+	}
+
+	JsonWriter writeByte(char c) {
+		ensure(1);
+		mBuf[mSize++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Write <code>"key":</code>
+	 */
+	JsonWriter writeName(String key) {
+		writeQuoted(key);
+		return writeByte(':');
+	}
+
+	JsonWriter writeBoolean(boolean value) {
+		return writeRaw(value ? TRUE : FALSE);
+	}
+
+	JsonWriter writeInt(int value) {
+		return writeAscii(Integer.toString(value));
+	}
+
+	/**
+	 * Write the value in the same way as org.json
+	 */
+	JsonWriter writeValue(Object value) {
+		if (value == null || value == JSONObject.NULL) {
+			return writeRaw(NULL);
+		}
+		if (value instanceof String) {
+			return writeQuoted((String) value);
+		}
+		if (value instanceof Boolean) {
+			return writeBoolean(((Boolean) value).booleanValue());
+		}
+		if (value instanceof Integer || value instanceof Long) {
+			return writeAscii(value.toString());
+		}
+
+		// other numbers, maps, collections and beans are rare in the payload,
+		// so let org.json render them
+		return writeString(JSONObject.valueToString(value));
+	}
+
+	/**
+	 * Write the map as an object, skipping null values like org.json
+	 */
+	JsonWriter writeObject(Map<String, ?> map) {
+		writeByte('{');
+		boolean first = true;
+		for (Map.Entry<String, ?> entry : map.entrySet()) {
+			if (entry.getValue() == null) {
+				continue;
+			}
+			if (!first) {
+				writeByte(',');
+			}
+			first = false;
+			writeName(entry.getKey());
+			writeValue(entry.getValue());
+		}
+		return writeByte('}');
+	}
+
+	/**
+	 * Write the array of the strings
+	 */
+	JsonWriter writeStringArray(List<String> values) {
+		writeByte('[');
+		final int size = values.size();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				writeByte(',');
+			}
+			final String value = values.get(i);
+			if (value == null) {
+				writeRaw(NULL);
+			} else {
+				writeQuoted(value);
+			}
+		}
+		return writeByte(']');
+	}
+
+	/**
+	 * Write the quoted and escaped string
+	 */
+	JsonWriter writeQuoted(String text) {
+		if (text == null) {
+			// JSONObject#quote writes "" for null
+			ensure(2);
+			mBuf[mSize++] = '"';
+			mBuf[mSize++] = '"';
+			return this;
+		}
+
+		final int len = text.length();
+
+		// at most 6 bytes (unicode escape) per char and 2 quotes
+		ensure(len * 6 + 2);
+		final byte[] buf = mBuf;
+		int pos = mSize;
+		buf[pos++] = '"';
+
+		char prev = 0;
+		for (int i = 0; i < len; i++) {
+			final char c = text.charAt(i);
+
+			switch (c) {
+			case '"':
+			case '\\':
+				buf[pos++] = '\\';
+				buf[pos++] = (byte) c;
+				break;
+			case '/':
+				if (prev == '<') {
+					buf[pos++] = '\\';
+				}
+				buf[pos++] = '/';
+				break;
+			case '\b':
+				buf[pos++] = '\\';
+				buf[pos++] = 'b';
+				break;
+			case '\t':
+				buf[pos++] = '\\';
+				buf[pos++] = 't';
+				break;
+			case '\n':
+				buf[pos++] = '\\';
+				buf[pos++] = 'n';
+				break;
+			case '\f':
+				buf[pos++] = '\\';
+				buf[pos++] = 'f';
+				break;
+			case '\r':
+				buf[pos++] = '\\';
+				buf[pos++] = 'r';
+				break;
+			default:
+				if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+					buf[pos++] = '\\';
+					buf[pos++] = 'u';
+					buf[pos++] = HEX[(c >>> 12) & 0xf];
+					buf[pos++] = HEX[(c >>> 8) & 0xf];
+					buf[pos++] = HEX[(c >>> 4) & 0xf];
+					buf[pos++] = HEX[c & 0xf];
+				} else if (c < 0x80) {
+					buf[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					buf[pos++] = (byte) (0xc0 | (c >>> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+					final int cp = Character.toCodePoint(c, text.charAt(++i));
+					buf[pos++] = (byte) (0xf0 | (cp >>> 18));
+					buf[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+					buf[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					// unpaired surrogate is replaced by '?' as String#getBytes
+					buf[pos++] = '?';
+				} else {
+					buf[pos++] = (byte) (0xe0 | (c >>> 12));
+					buf[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			prev = c;
+		}
+
+		buf[pos++] = '"';
+		mSize = pos;
+		return this;
+	}
+
+	/**
+	 * Returns the written bytes
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(mBuf, mSize);
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	private JsonWriter writeAscii(String text) {
+		final int len = text.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			mBuf[mSize++] = (byte) text.charAt(i);
+		}
+		return this;
+	}
+
+	private JsonWriter writeString(String text) {
+		return writeRaw(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private JsonWriter writeRaw(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, mBuf, mSize, bytes.length);
+		mSize += bytes.length;
+		return this;
+	}
+
+	private void ensure(int extra) {
+		final int required = mSize + extra;
+		if (required > mBuf.length) {
+			mBuf = Arrays.copyOf(mBuf, Math.max(required, mBuf.length * 2));
+		}
+	}
+}
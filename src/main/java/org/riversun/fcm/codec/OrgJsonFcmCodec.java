@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+
+/**
+ * Codec using org.json, kept for compatibility<br>
+ * <p>
+ * Requests are built with {@link EntityMessage#toJsonObject(List)} and
+ * responses are parsed into a {@link JSONObject} up front.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class OrgJsonFcmCodec implements FcmCodec {
+
+	public static final String NAME = "org.json";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getPriority() {
+		return 0;
+	}
+
+	@Override
+	public byte[] encode(EntityMessage msg, List<String> registrationTokens) {
+		return msg.toJsonObject(registrationTokens).toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public FcmResponse decode(int httpResponseCode, byte[] body) {
+		return new FcmResponse(httpResponseCode, new JSONObject(new String(body, StandardCharsets.UTF_8)));
+	}
+}
@@ -21,12 +21,13 @@
  */
 package org.riversun.fcm.model;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.json.JSONObject;
+import org.riversun.fcm.util.JsonSize;
 
 /**
  * Data model for sending messages to specific objects<br>
@@ -51,8 +52,33 @@ import org.json.JSONObject;
  */
 public class EntityMessage {
 
+	/**
+	 * Maximum size of the payload (data and notification) accepted by FCM in
+	 * bytes
+	 */
+	public static final int MAX_PAYLOAD_SIZE = 4096;
+
 	private final Map<String, Object> mDataMap = new LinkedHashMap<String, Object>();
-	private final List<String> mRegistrationTokenList = new ArrayList<String>();
+	private final RegistrationTokenSet mRegistrationTokens = new RegistrationTokenSet();
+
+	// encoded size of the members in mDataMap, without braces and commas
+	private int mDataMembersSize = 0;
+	// number of members in mDataMap that are encoded, null values are dropped
+	private int mNumOfDataMembers = 0;
+
+	private String mIdempotencyKey;
+
+	private Notification mNotification;
+	private Priority mPriority;
+	private Integer mTimeToLive;
+	private Boolean mContentAvailable;
+	private Boolean mMutableContent;
+	private Boolean mDryRun;
+
+	/**
+	 * Max time to live in seconds (4 weeks)
+	 */
+	public static final int MAX_TIME_TO_LIVE = 2419200;
 
 	/**
 	 * Pub String value to the payload
@@ -76,12 +102,166 @@ public class EntityMessage {
 
 	/**
 	 * Put Object
+	 * <p>
+	 * The key should not be a reserved word ("from" or any word starting with
+	 * "google" or "gcm").
 	 * 
 	 * @param key
 	 * @param value
+	 * @throws IllegalArgumentException
+	 *             if the key is null or reserved
 	 */
 	public void putData(String key, Object value) {
-		mDataMap.put(key, value);
+		checkDataKey(key);
+
+		final Object oldValue = mDataMap.put(key, value);
+		if (oldValue != null) {
+			mDataMembersSize -= JsonSize.memberSize(key, oldValue);
+			mNumOfDataMembers--;
+		}
+		if (value != null) {
+			mDataMembersSize += JsonSize.memberSize(key, value);
+			mNumOfDataMembers++;
+		}
+	}
+
+	/**
+	 * Returns the encoded size of the data payload in bytes
+	 * <p>
+	 * The size is accounted incrementally when data is put, so this method is
+	 * cheap and does not serialize the payload.
+	 * 
+	 * @return
+	 */
+	public int getDataSize() {
+		final int numOfMembers = mNumOfDataMembers;
+
+		// braces and commas between members
+		final int separators = 2 + (numOfMembers > 0 ? numOfMembers - 1 : 0);
+		return mDataMembersSize + separators;
+	}
+
+	/**
+	 * Returns the encoded size of the data and notification payload in bytes
+	 * 
+	 * @return
+	 */
+	public int getPayloadSize() {
+		return getDataSize() + (mNotification != null ? mNotification.getEncodedSize() : 0);
+	}
+
+	/**
+	 * Returns true if the payload fits in the FCM payload limit
+	 * 
+	 * @return
+	 */
+	public boolean fitsLimit() {
+		return getPayloadSize() <= MAX_PAYLOAD_SIZE;
+	}
+
+	/**
+	 * Set notification payload displayed by the system
+	 * 
+	 * @param notification
+	 *            null to remove
+	 */
+	public void setNotification(Notification notification) {
+		mNotification = notification;
+	}
+
+	public Notification getNotification() {
+		return mNotification;
+	}
+
+	/**
+	 * Set priority of the message
+	 * <p>
+	 * Use {@link Priority#HIGH} for time-sensitive messages like one time
+	 * passwords.
+	 * 
+	 * @param priority
+	 *            null to use FCM's default
+	 */
+	public void setPriority(Priority priority) {
+		mPriority = priority;
+	}
+
+	public Priority getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * Set how long (in seconds) the message should be kept in FCM storage if
+	 * the device is offline
+	 * <p>
+	 * 0 means "now or never".
+	 * 
+	 * @param timeToLive
+	 *            from 0 to {@link #MAX_TIME_TO_LIVE}, or null to use FCM's
+	 *            default (4 weeks)
+	 */
+	public void setTimeToLive(Integer timeToLive) {
+		if (timeToLive != null && (timeToLive < 0 || timeToLive > MAX_TIME_TO_LIVE)) {
+			throw new IllegalArgumentException("timeToLive must be between 0 and " + MAX_TIME_TO_LIVE);
+		}
+		mTimeToLive = timeToLive;
+	}
+
+	public Integer getTimeToLive() {
+		return mTimeToLive;
+	}
+
+	/**
+	 * iOS only. Set true to wake the inactive client app.
+	 * 
+	 * @param contentAvailable
+	 *            null to not send
+	 */
+	public void setContentAvailable(Boolean contentAvailable) {
+		mContentAvailable = contentAvailable;
+	}
+
+	public Boolean getContentAvailable() {
+		return mContentAvailable;
+	}
+
+	/**
+	 * iOS only. Set true to let the notification service extension modify the
+	 * notification before it is displayed.
+	 * 
+	 * @param mutableContent
+	 *            null to not send
+	 */
+	public void setMutableContent(Boolean mutableContent) {
+		mMutableContent = mutableContent;
+	}
+
+	public Boolean getMutableContent() {
+		return mMutableContent;
+	}
+
+	/**
+	 * Set true to test the request without actually sending the message to
+	 * devices
+	 * 
+	 * @param dryRun
+	 *            null to not send
+	 */
+	public void setDryRun(Boolean dryRun) {
+		mDryRun = dryRun;
+	}
+
+	public Boolean getDryRun() {
+		return mDryRun;
+	}
+
+	static void checkDataKey(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("key must not be null");
+		}
+		if ("from".equals(key) || key.startsWith("google") || key.startsWith("gcm")) {
+			throw new IllegalArgumentException("key \"" + key + "\" is reserved by FCM");
+		}
 	}
 
 	/**
@@ -97,48 +277,141 @@ public class EntityMessage {
 	 * Use this parameter only for multicast messaging, not for single
 	 * recipients. Multicast messages (sending to more than 1 registration
 	 * tokens) are allowed using HTTP JSON format only.
+	 * <p>
+	 * Duplicated tokens are ignored.
 	 * 
 	 * @param registrationToken
 	 */
 	public void addRegistrationToken(String registrationToken) {
-		mRegistrationTokenList.add(registrationToken);
+		mRegistrationTokens.add(registrationToken);
 	}
 
 	/**
 	 * Remove specified registrationId
+	 * <p>
+	 * The last registered token takes the position of the removed token.
 	 * 
 	 * @param registrationToken
 	 */
 	public void removeRegistrationToken(String registrationToken) {
-		if (mRegistrationTokenList.contains(registrationToken)) {
-			mRegistrationTokenList.remove(registrationToken);
-		}
-
+		mRegistrationTokens.remove(registrationToken);
 	}
 
 	/**
 	 * Set registrationIds in the specified list
+	 * <p>
+	 * Duplicated tokens are ignored. If the list is a chunk of
+	 * {@link RegistrationTokenSet}, tokens are shared without copying.
 	 * 
 	 * @param list
 	 */
 	public void setRegistrationTokenList(List<String> list) {
-		mRegistrationTokenList.clear();
-		mRegistrationTokenList.addAll(list);
+		mRegistrationTokens.clear();
+		mRegistrationTokens.addAll(list);
+	}
+
+	/**
+	 * Returns read-only view of registered registrationIds in the order they
+	 * are sent
+	 * 
+	 * @return
+	 */
+	public List<String> getRegistrationTokenList() {
+		return mRegistrationTokens.chunk(0, mRegistrationTokens.size());
+	}
+
+	/**
+	 * Returns number of registered registrationIds
+	 * 
+	 * @return
+	 */
+	public int getRegistrationTokenCount() {
+		return mRegistrationTokens.size();
 	}
 
 	/**
 	 * Remove all registered registrationIds
 	 */
 	public void clearRegistrationTokens() {
-		mRegistrationTokenList.clear();
+		mRegistrationTokens.clear();
+	}
+
+	/**
+	 * Set key that identifies the logical notification
+	 * <p>
+	 * If the client has a dedup cache, the message is not sent again to the
+	 * same registration token with the same key while the key is remembered.
+	 * The key is not sent to FCM.
+	 * 
+	 * @param idempotencyKey
+	 */
+	public void setIdempotencyKey(String idempotencyKey) {
+		mIdempotencyKey = idempotencyKey;
+	}
+
+	public String getIdempotencyKey() {
+		return mIdempotencyKey;
+	}
+
+	/**
+	 * Returns read-only view of the data payload
+	 * 
+	 * @return
+	 */
+	public Map<String, Object> getDataMap() {
+		return Collections.unmodifiableMap(mDataMap);
+	}
+
+	/**
+	 * Converts to an immutable message that can be shared among threads
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the payload exceeds {@link #MAX_PAYLOAD_SIZE}
+	 */
+	public ImmutableEntityMessage toImmutable() {
+		final ImmutableEntityMessage.Builder builder = new ImmutableEntityMessage.Builder();
+		for (Map.Entry<String, Object> entry : mDataMap.entrySet()) {
+			builder.putData(entry.getKey(), entry.getValue());
+		}
+		return builder.notification(mNotification)
+				.priority(mPriority)
+				.timeToLive(mTimeToLive)
+				.contentAvailable(mContentAvailable)
+				.mutableContent(mMutableContent)
+				.dryRun(mDryRun)
+				.idempotencyKey(mIdempotencyKey)
+				.registrationTokens(getRegistrationTokenList())
+				.build();
 	}
 
 	/**
 	 * Generates JSONObject
 	 * 
 	 * @return
+	 * @throws IllegalStateException
+	 *             if the payload exceeds {@link #MAX_PAYLOAD_SIZE}
 	 */
 	public JSONObject toJsonObject() {
+		return toJsonObject(getRegistrationTokenList());
+	}
+
+	/**
+	 * Generates JSONObject sent to the specified registration tokens instead
+	 * of the registered ones
+	 * <p>
+	 * Use this to send the same payload to a chunk of a large audience.
+	 * 
+	 * @param registrationTokens
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the payload exceeds {@link #MAX_PAYLOAD_SIZE}
+	 */
+	public JSONObject toJsonObject(List<String> registrationTokens) {
+
+		if (!fitsLimit()) {
+			throw new IllegalStateException("payload is " + getPayloadSize() + " bytes, exceeds the limit of " + MAX_PAYLOAD_SIZE + " bytes");
+		}
 
 		final JSONObject json = new JSONObject();
 
@@ -161,7 +434,7 @@ public class EntityMessage {
 		 * "https://firebase.google.com/docs/cloud-messaging/http-server-ref?hl=en"
 		 * >
 		 */
-		final String[] registrationIds = mRegistrationTokenList.toArray(new String[] {});
+		final String[] registrationIds = registrationTokens.toArray(new String[registrationTokens.size()]);
 
 		// for multicast
 		json.accumulate("registration_ids", registrationIds);
@@ -194,7 +467,29 @@ public class EntityMessage {
 		 * to string
 		 * 
 		 */
-		json.accumulate("data", mDataMap);
+		if (!mDataMap.isEmpty()) {
+			json.accumulate("data", mDataMap);
+		}
+
+		// fields not set are skipped to keep the request small
+		if (mNotification != null) {
+			json.put("notification", mNotification.toJsonObject());
+		}
+		if (mPriority != null) {
+			json.put("priority", mPriority.getValue());
+		}
+		if (mTimeToLive != null) {
+			json.put("time_to_live", mTimeToLive.intValue());
+		}
+		if (mContentAvailable != null) {
+			json.put("content_available", mContentAvailable.booleanValue());
+		}
+		if (mMutableContent != null) {
+			json.put("mutable_content", mMutableContent.booleanValue());
+		}
+		if (mDryRun != null) {
+			json.put("dry_run", mDryRun.booleanValue());
+		}
 
 		return json;
 	}
@@ -21,11 +21,13 @@
  */
 package org.riversun.fcm.model;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -33,13 +35,68 @@ import org.json.JSONObject;
  * Fcm downstream response <br>
  * {@see https://firebase.google.com/docs/cloud-messaging/http-server-ref} <br>
  * {@see https://firebase.google.com/docs/cloud-messaging/send-message}
+ * <p>
+ * When created from the raw response body, only the counts are parsed up
+ * front. Results are decoded on demand from the body, so checking
+ * {@link #getFailure()} and {@link #getCanonicalIds()} of an all-success
+ * response costs a single scan without building any object. Use
+ * {@link #forEachFailure(FailureVisitor)} and
+ * {@link #forEachCanonicalId(CanonicalIdVisitor)} to visit only the affected
+ * results.
  * 
  * @author Tom Misawa (riversun.org@gmail.com)
  *
  */
 public class FcmResponse {
 
-	private final JSONObject mJson;
+	private volatile JSONObject mJson;
+
+	// raw response body, null if created from JSONObject
+	private final byte[] mBody;
+
+	// position of the results array in the body, -1 if absent
+	private int mResultsPos = -1;
+
+	// positions of the result objects in the body, built on demand
+	private volatile int[] mResultOffsets;
+
+	/**
+	 * Receives failed results
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public interface FailureVisitor {
+
+		/**
+		 * 
+		 * @param index
+		 *            index of the result, same as the index of the
+		 *            registration token in the request
+		 * @param error
+		 *            error code like "NotRegistered"
+		 */
+		public void onFailure(int index, String error);
+	}
+
+	/**
+	 * Receives results with a canonical registration token
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public interface CanonicalIdVisitor {
+
+		/**
+		 * 
+		 * @param index
+		 *            index of the result, same as the index of the
+		 *            registration token in the request
+		 * @param registrationId
+		 *            canonical registration token to use from now on
+		 */
+		public void onCanonicalId(int index, String registrationId);
+	}
 
 	/**
 	 * Each result from FCM
@@ -117,18 +174,44 @@ public class FcmResponse {
 	private int mFailure;
 	private int mCanonicalIds;
 
-	private List<FcmResult> mResultList;
+	private volatile List<FcmResult> mResultList;
+
+	private RequestTiming mTiming;
+
+	private List<String> mRegistrationTokens;
+	private int mSuppressedCount;
 
 	public FcmResponse(int httpResponseCode, JSONObject json) {
 		mHttpLayerSuccess = true;
 		mJson = json;
+		mBody = null;
 		mHttpResponseCode = httpResponseCode;
 		parse(json);
 	}
 
+	/**
+	 * Create from the raw response body
+	 * <p>
+	 * The body is kept as is and must not be modified afterwards.
+	 * 
+	 * @param httpResponseCode
+	 * @param body
+	 *            UTF-8 encoded JSON text
+	 * @throws JSONException
+	 *             if the body is not a JSON object
+	 */
+	public FcmResponse(int httpResponseCode, byte[] body) {
+		mHttpLayerSuccess = true;
+		mJson = null;
+		mBody = body;
+		mHttpResponseCode = httpResponseCode;
+		scan(body);
+	}
+
 	public FcmResponse(int httpResponseCode, String httpErrorMsg, Exception e) {
 		mHttpLayerSuccess = false;
 		mJson = null;
+		mBody = null;
 		mHttpResponseCode = httpResponseCode;
 		mHttpErrorMessage = httpErrorMsg;
 		mHttpLevelException = e;
@@ -175,6 +258,118 @@ public class FcmResponse {
 		}
 	}
 
+	/**
+	 * Parse the counts and find the results array
+	 */
+	private void scan(byte[] body) {
+		int pos = RawJson.skipWhitespace(body, RawJson.expect(body, 0, '{') + 1);
+		if (pos < body.length && body[pos] == '}') {
+			return;
+		}
+
+		while (true) {
+			final int keyPos = RawJson.expect(body, pos, '"');
+			final int valuePos = RawJson.skipWhitespace(body, RawJson.expect(body, RawJson.skipString(body, keyPos), ':') + 1);
+
+			if (RawJson.stringEquals(body, keyPos, "multicast_id")) {
+				mMulticastId = RawJson.readLong(body, valuePos);
+			} else if (RawJson.stringEquals(body, keyPos, "success")) {
+				final Long success = RawJson.readLong(body, valuePos);
+				mSuccess = success != null ? success.intValue() : null;
+			} else if (RawJson.stringEquals(body, keyPos, "failure")) {
+				final Long failure = RawJson.readLong(body, valuePos);
+				mFailure = failure != null ? failure.intValue() : 0;
+			} else if (RawJson.stringEquals(body, keyPos, "canonical_ids")) {
+				final Long canonicalIds = RawJson.readLong(body, valuePos);
+				mCanonicalIds = canonicalIds != null ? canonicalIds.intValue() : 0;
+			} else if (RawJson.stringEquals(body, keyPos, "results") && !RawJson.isNull(body, valuePos)) {
+				mResultsPos = RawJson.expect(body, valuePos, '[');
+			}
+
+			pos = RawJson.skipWhitespace(body, RawJson.skipValue(body, valuePos));
+			if (pos < body.length && body[pos] == ',') {
+				pos++;
+				continue;
+			}
+			RawJson.expect(body, pos, '}');
+			return;
+		}
+	}
+
+	/**
+	 * Returns positions of the result objects in the body
+	 */
+	private int[] resultOffsets() {
+		int[] offsets = mResultOffsets;
+		if (offsets != null) {
+			return offsets;
+		}
+
+		offsets = new int[16];
+		int count = 0;
+
+		if (mResultsPos >= 0) {
+			final byte[] body = mBody;
+			int pos = RawJson.skipWhitespace(body, mResultsPos + 1);
+			if (pos >= body.length || body[pos] != ']') {
+				while (true) {
+					pos = RawJson.expect(body, pos, '{');
+					if (count == offsets.length) {
+						offsets = Arrays.copyOf(offsets, count * 2);
+					}
+					offsets[count++] = pos;
+
+					pos = RawJson.skipWhitespace(body, RawJson.skipValue(body, pos));
+					if (pos < body.length && body[pos] == ',') {
+						pos++;
+						continue;
+					}
+					RawJson.expect(body, pos, ']');
+					break;
+				}
+			}
+		}
+
+		offsets = Arrays.copyOf(offsets, count);
+		mResultOffsets = offsets;
+		return offsets;
+	}
+
+	/**
+	 * Decode a field of the result object at the position, or returns null if
+	 * absent
+	 */
+	private String readResultField(int offset, String key) {
+		final byte[] body = mBody;
+		int pos = RawJson.skipWhitespace(body, offset + 1);
+		if (pos < body.length && body[pos] == '}') {
+			return null;
+		}
+
+		while (true) {
+			final int keyPos = RawJson.expect(body, pos, '"');
+			final int valuePos = RawJson.skipWhitespace(body, RawJson.expect(body, RawJson.skipString(body, keyPos), ':') + 1);
+			if (RawJson.stringEquals(body, keyPos, key)) {
+				return RawJson.readString(body, valuePos);
+			}
+
+			pos = RawJson.skipWhitespace(body, RawJson.skipValue(body, valuePos));
+			if (pos < body.length && body[pos] == ',') {
+				pos++;
+				continue;
+			}
+			return null;
+		}
+	}
+
+	private FcmResult decodeResult(int offset) {
+		final FcmResult rslt = new FcmResult();
+		rslt.messageId = readResultField(offset, "message_id");
+		rslt.error = readResultField(offset, "error");
+		rslt.registrationId = readResultField(offset, "registration_id");
+		return rslt;
+	}
+
 	private Object getn(JSONObject json, String key) {
 		if (json.isNull(key)) {
 			return null;
@@ -182,7 +377,18 @@ public class FcmResponse {
 		return json.get(key);
 	}
 
+	/**
+	 * Returns the response as JSON
+	 * <p>
+	 * If created from the raw response body, the body is parsed on the first
+	 * call.
+	 * 
+	 * @return
+	 */
 	public JSONObject getJson() {
+		if (mJson == null && mBody != null) {
+			mJson = new JSONObject(new String(mBody, StandardCharsets.UTF_8));
+		}
 		return mJson;
 	}
 
@@ -266,11 +472,122 @@ public class FcmResponse {
 	 *         <@link
 	 *         "https://firebase.google.com/docs/cloud-messaging/http-server-ref?hl=en"
 	 *         >
+	 *         <p>
+	 *         If created from the raw response body, all results are decoded
+	 *         on the first call. Prefer {@link #forEachFailure(FailureVisitor)}
+	 *         when only failed results are needed.
 	 */
 	public List<FcmResult> getResult() {
+		if (mResultList == null && mBody != null) {
+			final int[] offsets = resultOffsets();
+			if (offsets.length > 0) {
+				final List<FcmResult> results = new ArrayList<FcmResult>(offsets.length);
+				for (int offset : offsets) {
+					results.add(decodeResult(offset));
+				}
+				mResultList = results;
+			}
+		}
 		return mResultList;
 	}
 
+	/**
+	 * Visit results with an error in index order
+	 * <p>
+	 * Returns immediately if {@link #getFailure()} is 0.
+	 * 
+	 * @param visitor
+	 */
+	public void forEachFailure(FailureVisitor visitor) {
+		if (mFailure == 0) {
+			return;
+		}
+
+		if (mBody == null) {
+			final List<FcmResult> results = mResultList;
+			for (int i = 0; results != null && i < results.size(); i++) {
+				if (results.get(i).getError() != null) {
+					visitor.onFailure(i, results.get(i).getError());
+				}
+			}
+			return;
+		}
+
+		final int[] offsets = resultOffsets();
+		for (int i = 0; i < offsets.length; i++) {
+			final String error = readResultField(offsets[i], "error");
+			if (error != null) {
+				visitor.onFailure(i, error);
+			}
+		}
+	}
+
+	/**
+	 * Visit results with a canonical registration token in index order
+	 * <p>
+	 * Returns immediately if {@link #getCanonicalIds()} is 0.
+	 * 
+	 * @param visitor
+	 */
+	public void forEachCanonicalId(CanonicalIdVisitor visitor) {
+		if (mCanonicalIds == 0) {
+			return;
+		}
+
+		if (mBody == null) {
+			final List<FcmResult> results = mResultList;
+			for (int i = 0; results != null && i < results.size(); i++) {
+				if (results.get(i).getRegistrationId() != null) {
+					visitor.onCanonicalId(i, results.get(i).getRegistrationId());
+				}
+			}
+			return;
+		}
+
+		final int[] offsets = resultOffsets();
+		for (int i = 0; i < offsets.length; i++) {
+			final String registrationId = readResultField(offsets[i], "registration_id");
+			if (registrationId != null) {
+				visitor.onCanonicalId(i, registrationId);
+			}
+		}
+	}
+
+	/**
+	 * Returns number of results
+	 * 
+	 * @return
+	 */
+	public int getResultCount() {
+		if (mBody == null) {
+			final List<FcmResult> results = mResultList;
+			return results != null ? results.size() : 0;
+		}
+		return resultOffsets().length;
+	}
+
+	/**
+	 * Returns the result at the index
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public FcmResult getResult(int index) {
+		if (mBody == null) {
+			final List<FcmResult> results = mResultList;
+			if (results == null) {
+				throw new IndexOutOfBoundsException("index=" + index + " size=0");
+			}
+			return results.get(index);
+		}
+
+		final int[] offsets = resultOffsets();
+		if (index < 0 || index >= offsets.length) {
+			throw new IndexOutOfBoundsException("index=" + index + " size=" + offsets.length);
+		}
+		return decodeResult(offsets[index]);
+	}
+
 	public boolean isEnabled() {
 		return mHttpLayerSuccess;
 	}
@@ -287,11 +604,53 @@ public class FcmResponse {
 		return mHttpLevelException;
 	}
 
+	/**
+	 * Returns timing of each phase of the request, or null if not measured
+	 * 
+	 * @return
+	 */
+	public RequestTiming getTiming() {
+		return mTiming;
+	}
+
+	public void setTiming(RequestTiming timing) {
+		mTiming = timing;
+	}
+
+	/**
+	 * Returns registration tokens the request was sent to in the same order
+	 * as the results, or null if not known
+	 * 
+	 * @return
+	 */
+	public List<String> getRegistrationTokens() {
+		return mRegistrationTokens;
+	}
+
+	public void setRegistrationTokens(List<String> registrationTokens) {
+		mRegistrationTokens = registrationTokens;
+	}
+
+	/**
+	 * Returns number of registration tokens dropped as duplicates before
+	 * sending
+	 * 
+	 * @return
+	 */
+	public int getSuppressedCount() {
+		return mSuppressedCount;
+	}
+
+	public void setSuppressedCount(int suppressedCount) {
+		mSuppressedCount = suppressedCount;
+	}
+
 	@Override
 	public String toString() {
 		String resultText = "[]";
-		if (mResultList != null) {
-			resultText = Arrays.toString(mResultList.toArray());
+		final List<FcmResult> results = getResult();
+		if (results != null) {
+			resultText = Arrays.toString(results.toArray());
 		}
 		return "FcmResponse [HttpLayerSuccess=" + mHttpLayerSuccess + ", HttpResponseCode=" + mHttpResponseCode + ", HttpErrorMessage=" + mHttpErrorMessage + ", MulticastId="
 				+ mMulticastId + ", Success=" + mSuccess + ", Failure=" + mFailure + ", CanonicalIds=" + mCanonicalIds + ", ResultList=" + resultText + "]";
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.riversun.fcm.util.JsonSize;
+
+/**
+ * Immutable and thread-safe version of {@link EntityMessage}<br>
+ * <p>
+ * A message consists of the registration tokens and the payload (data,
+ * notification and options). Messages derived by
+ * {@link #withRegistrationTokens(List)} or {@link #chunks()} share the payload
+ * with the original message, and the JSON text of the payload is generated
+ * only once. The JSON text of the whole message is also cached, so sending
+ * the same message repeatedly costs no serialization.
+ * 
+ * <code>
+ * ImmutableEntityMessage msg = new ImmutableEntityMessage.Builder()
+ *     .putStringData("myKey1", "myValue1")
+ *     .priority(Priority.HIGH)
+ *     .registrationTokens(tokenList)
+ *     .build();
+ * </code>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public final class ImmutableEntityMessage {
+
+	/**
+	 * Payload shared among derived messages
+	 */
+	private static final class Payload {
+
+		final Map<String, Object> dataMap;
+		final Notification notification;
+		final Priority priority;
+		final Integer timeToLive;
+		final Boolean contentAvailable;
+		final Boolean mutableContent;
+		final Boolean dryRun;
+		final String idempotencyKey;
+		final int payloadSize;
+
+		// members of the payload without braces, generated on demand
+		private volatile String mJsonMembers;
+
+		Payload(Builder builder) {
+			dataMap = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(builder.mDataMap));
+			notification = builder.mNotification;
+			priority = builder.mPriority;
+			timeToLive = builder.mTimeToLive;
+			contentAvailable = builder.mContentAvailable;
+			mutableContent = builder.mMutableContent;
+			dryRun = builder.mDryRun;
+			idempotencyKey = builder.mIdempotencyKey;
+
+			int dataSize = 2;
+			int numOfMembers = 0;
+			for (Map.Entry<String, Object> entry : dataMap.entrySet()) {
+				if (entry.getValue() != null) {
+					dataSize += JsonSize.memberSize(entry.getKey(), entry.getValue());
+					numOfMembers++;
+				}
+			}
+			dataSize += Math.max(0, numOfMembers - 1);
+			payloadSize = dataSize + (notification != null ? notification.getEncodedSize() : 0);
+		}
+
+		String jsonMembers() {
+			String members = mJsonMembers;
+			if (members == null) {
+				final JSONObject json = new JSONObject();
+				if (!dataMap.isEmpty()) {
+					json.put("data", new JSONObject(dataMap));
+				}
+				if (notification != null) {
+					json.put("notification", notification.toJsonObject());
+				}
+				if (priority != null) {
+					json.put("priority", priority.getValue());
+				}
+				if (timeToLive != null) {
+					json.put("time_to_live", timeToLive.intValue());
+				}
+				if (contentAvailable != null) {
+					json.put("content_available", contentAvailable.booleanValue());
+				}
+				if (mutableContent != null) {
+					json.put("mutable_content", mutableContent.booleanValue());
+				}
+				if (dryRun != null) {
+					json.put("dry_run", dryRun.booleanValue());
+				}
+				final String text = json.toString();
+				members = text.substring(1, text.length() - 1);
+				mJsonMembers = members;
+			}
+			return members;
+		}
+	}
+
+	/**
+	 * Builder for {@link ImmutableEntityMessage}
+	 * <p>
+	 * Builders are not thread-safe.
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public static class Builder {
+
+		private final Map<String, Object> mDataMap = new LinkedHashMap<String, Object>();
+		private Notification mNotification;
+		private Priority mPriority;
+		private Integer mTimeToLive;
+		private Boolean mContentAvailable;
+		private Boolean mMutableContent;
+		private Boolean mDryRun;
+		private String mIdempotencyKey;
+		private List<String> mRegistrationTokens = Collections.emptyList();
+
+		public Builder() {
+		}
+
+		private Builder(ImmutableEntityMessage msg) {
+			final Payload payload = msg.mPayload;
+			mDataMap.putAll(payload.dataMap);
+			mNotification = payload.notification;
+			mPriority = payload.priority;
+			mTimeToLive = payload.timeToLive;
+			mContentAvailable = payload.contentAvailable;
+			mMutableContent = payload.mutableContent;
+			mDryRun = payload.dryRun;
+			mIdempotencyKey = payload.idempotencyKey;
+			mRegistrationTokens = msg.mRegistrationTokens;
+		}
+
+		/**
+		 * @see EntityMessage#putStringData(String, String)
+		 */
+		public Builder putStringData(String key, String value) {
+			return putData(key, value);
+		}
+
+		/**
+		 * @see EntityMessage#putBooleanData(String, boolean)
+		 */
+		public Builder putBooleanData(String key, boolean value) {
+			return putData(key, value);
+		}
+
+		/**
+		 * @see EntityMessage#putData(String, Object)
+		 */
+		public Builder putData(String key, Object value) {
+			EntityMessage.checkDataKey(key);
+			mDataMap.put(key, value);
+			return this;
+		}
+
+		public Builder notification(Notification notification) {
+			mNotification = notification;
+			return this;
+		}
+
+		public Builder priority(Priority priority) {
+			mPriority = priority;
+			return this;
+		}
+
+		/**
+		 * @see EntityMessage#setTimeToLive(Integer)
+		 */
+		public Builder timeToLive(Integer timeToLive) {
+			if (timeToLive != null && (timeToLive < 0 || timeToLive > EntityMessage.MAX_TIME_TO_LIVE)) {
+				throw new IllegalArgumentException("timeToLive must be between 0 and " + EntityMessage.MAX_TIME_TO_LIVE);
+			}
+			mTimeToLive = timeToLive;
+			return this;
+		}
+
+		public Builder contentAvailable(Boolean contentAvailable) {
+			mContentAvailable = contentAvailable;
+			return this;
+		}
+
+		public Builder mutableContent(Boolean mutableContent) {
+			mMutableContent = mutableContent;
+			return this;
+		}
+
+		public Builder dryRun(Boolean dryRun) {
+			mDryRun = dryRun;
+			return this;
+		}
+
+		/**
+		 * @see EntityMessage#setIdempotencyKey(String)
+		 */
+		public Builder idempotencyKey(String idempotencyKey) {
+			mIdempotencyKey = idempotencyKey;
+			return this;
+		}
+
+		/**
+		 * Set registration tokens, duplicated tokens are not removed
+		 */
+		public Builder registrationTokens(List<String> registrationTokens) {
+			mRegistrationTokens = copyOf(registrationTokens);
+			return this;
+		}
+
+		public Builder registrationTokens(String... registrationTokens) {
+			return registrationTokens(Arrays.asList(registrationTokens));
+		}
+
+		/**
+		 * 
+		 * @return
+		 * @throws IllegalStateException
+		 *             if the payload exceeds
+		 *             {@link EntityMessage#MAX_PAYLOAD_SIZE}
+		 */
+		public ImmutableEntityMessage build() {
+			final Payload payload = new Payload(this);
+			if (payload.payloadSize > EntityMessage.MAX_PAYLOAD_SIZE) {
+				throw new IllegalStateException("payload is " + payload.payloadSize + " bytes, exceeds the limit of " + EntityMessage.MAX_PAYLOAD_SIZE + " bytes");
+			}
+			return new ImmutableEntityMessage(payload, mRegistrationTokens);
+		}
+	}
+
+	private final Payload mPayload;
+	private final List<String> mRegistrationTokens;
+
+	// generated on demand
+	private volatile String mJson;
+	private volatile byte[] mJsonBytes;
+
+	private ImmutableEntityMessage(Payload payload, List<String> registrationTokens) {
+		mPayload = payload;
+		mRegistrationTokens = registrationTokens;
+	}
+
+	/**
+	 * Returns a builder initialized with this message
+	 * 
+	 * @return
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	/**
+	 * Returns a message with the same payload sent to the specified tokens
+	 * <p>
+	 * The payload is shared, not copied.
+	 * 
+	 * @param registrationTokens
+	 * @return
+	 */
+	public ImmutableEntityMessage withRegistrationTokens(List<String> registrationTokens) {
+		return new ImmutableEntityMessage(mPayload, copyOf(registrationTokens));
+	}
+
+	/**
+	 * Returns a message with the same payload sent to the tokens of the chunk
+	 * <p>
+	 * The tokens are not copied, so the set of the chunk must never be
+	 * modified afterwards.
+	 * 
+	 * @param chunk
+	 * @return
+	 */
+	ImmutableEntityMessage withSharedRegistrationTokens(RegistrationTokenSet.Chunk chunk) {
+		return new ImmutableEntityMessage(mPayload, chunk);
+	}
+
+	/**
+	 * Returns messages with the same payload, each sent to a chunk of the
+	 * tokens
+	 * <p>
+	 * Both the payload and the token list are shared, not copied.
+	 * 
+	 * @param chunkSize
+	 * @return
+	 */
+	public List<ImmutableEntityMessage> chunks(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		final int size = mRegistrationTokens.size();
+		if (size <= chunkSize) {
+			return Collections.singletonList(this);
+		}
+		final List<ImmutableEntityMessage> chunks = new ArrayList<ImmutableEntityMessage>((size + chunkSize - 1) / chunkSize);
+		for (int from = 0; from < size; from += chunkSize) {
+			chunks.add(new ImmutableEntityMessage(mPayload, mRegistrationTokens.subList(from, Math.min(from + chunkSize, size))));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Returns messages each sent to at most
+	 * {@link RegistrationTokenSet#MAX_TOKENS_PER_REQUEST} tokens
+	 * 
+	 * @return
+	 */
+	public List<ImmutableEntityMessage> chunks() {
+		return chunks(RegistrationTokenSet.MAX_TOKENS_PER_REQUEST);
+	}
+
+	public List<String> getRegistrationTokens() {
+		return mRegistrationTokens;
+	}
+
+	public Map<String, Object> getDataMap() {
+		return mPayload.dataMap;
+	}
+
+	public Notification getNotification() {
+		return mPayload.notification;
+	}
+
+	public Priority getPriority() {
+		return mPayload.priority;
+	}
+
+	public Integer getTimeToLive() {
+		return mPayload.timeToLive;
+	}
+
+	public Boolean getContentAvailable() {
+		return mPayload.contentAvailable;
+	}
+
+	public Boolean getMutableContent() {
+		return mPayload.mutableContent;
+	}
+
+	public Boolean getDryRun() {
+		return mPayload.dryRun;
+	}
+
+	public String getIdempotencyKey() {
+		return mPayload.idempotencyKey;
+	}
+
+	/**
+	 * Returns the encoded size of the data and notification payload in bytes
+	 * 
+	 * @return
+	 */
+	public int getPayloadSize() {
+		return mPayload.payloadSize;
+	}
+
+	/**
+	 * Generates JSON text
+	 * <p>
+	 * The text is cached.
+	 * 
+	 * @return
+	 */
+	public String toJson() {
+		String json = mJson;
+		if (json == null) {
+			final String members = mPayload.jsonMembers();
+			final StringBuilder sb = new StringBuilder(members.length() + mRegistrationTokens.size() * 160 + 24);
+			sb.append("{\"registration_ids\":[");
+			for (int i = 0; i < mRegistrationTokens.size(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(JSONObject.quote(mRegistrationTokens.get(i)));
+			}
+			sb.append(']');
+			if (!members.isEmpty()) {
+				sb.append(',').append(members);
+			}
+			sb.append('}');
+			json = sb.toString();
+			mJson = json;
+		}
+		return json;
+	}
+
+	/**
+	 * Returns the JSON text encoded in UTF-8
+	 * <p>
+	 * The bytes are cached and shared, so the returned array must not be
+	 * modified.
+	 * 
+	 * @return
+	 */
+	public byte[] toJsonBytes() {
+		byte[] bytes = mJsonBytes;
+		if (bytes == null) {
+			bytes = toJson().getBytes(StandardCharsets.UTF_8);
+			mJsonBytes = bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Converts to a mutable message with the same payload and tokens
+	 * 
+	 * @return
+	 */
+	public EntityMessage toEntityMessage() {
+		final EntityMessage msg = new EntityMessage();
+		for (Map.Entry<String, Object> entry : mPayload.dataMap.entrySet()) {
+			msg.putData(entry.getKey(), entry.getValue());
+		}
+		msg.setNotification(mPayload.notification);
+		msg.setPriority(mPayload.priority);
+		msg.setTimeToLive(mPayload.timeToLive);
+		msg.setContentAvailable(mPayload.contentAvailable);
+		msg.setMutableContent(mPayload.mutableContent);
+		msg.setDryRun(mPayload.dryRun);
+		msg.setIdempotencyKey(mPayload.idempotencyKey);
+		msg.setRegistrationTokenList(mRegistrationTokens);
+		return msg;
+	}
+
+	/**
+	 * Generates JSONObject
+	 * 
+	 * @return
+	 */
+	public JSONObject toJsonObject() {
+		return new JSONObject(toJson());
+	}
+
+	@Override
+	public String toString() {
+		return "ImmutableEntityMessage " + toJson();
+	}
+
+	private static List<String> copyOf(List<String> registrationTokens) {
+		return Collections.unmodifiableList(Arrays.asList(registrationTokens.toArray(new String[registrationTokens.size()])));
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Notification payload of the message<br>
+ * <p>
+ * The notification is displayed by the system on behalf of the client app.
+ * Build with {@link Builder}. Fields that are not set are not sent.
+ * 
+ * <code>
+ * Notification notification = new Notification.Builder()
+ *     .title("title")
+ *     .body("body")
+ *     .build();
+ * </code>
+ * 
+ * {@see https://firebase.google.com/docs/cloud-messaging/http-server-ref}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class Notification {
+
+	private final String mTitle;
+	private final String mBody;
+	private final String mIcon;
+	private final String mSound;
+	private final String mBadge;
+	private final String mTag;
+	private final String mColor;
+	private final String mClickAction;
+	private final String mAndroidChannelId;
+	private final String mBodyLocKey;
+	private final List<String> mBodyLocArgs;
+	private final String mTitleLocKey;
+	private final List<String> mTitleLocArgs;
+
+	// encoded size, computed on demand
+	private int mEncodedSize = -1;
+
+	/**
+	 * Builder for {@link Notification}
+	 * 
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public static class Builder {
+
+		private String mTitle;
+		private String mBody;
+		private String mIcon;
+		private String mSound;
+		private String mBadge;
+		private String mTag;
+		private String mColor;
+		private String mClickAction;
+		private String mAndroidChannelId;
+		private String mBodyLocKey;
+		private List<String> mBodyLocArgs;
+		private String mTitleLocKey;
+		private List<String> mTitleLocArgs;
+
+		public Builder title(String title) {
+			mTitle = title;
+			return this;
+		}
+
+		public Builder body(String body) {
+			mBody = body;
+			return this;
+		}
+
+		/**
+		 * Android only. The notification's icon.
+		 */
+		public Builder icon(String icon) {
+			mIcon = icon;
+			return this;
+		}
+
+		/**
+		 * The sound to play when the device receives the notification, like
+		 * "default"
+		 */
+		public Builder sound(String sound) {
+			mSound = sound;
+			return this;
+		}
+
+		/**
+		 * iOS only. The value of the badge on the home screen app icon.
+		 */
+		public Builder badge(String badge) {
+			mBadge = badge;
+			return this;
+		}
+
+		/**
+		 * Android only. Notifications with the same tag replace each other in
+		 * the notification drawer.
+		 */
+		public Builder tag(String tag) {
+			mTag = tag;
+			return this;
+		}
+
+		/**
+		 * Android only. The icon color in #rrggbb format.
+		 */
+		public Builder color(String color) {
+			mColor = color;
+			return this;
+		}
+
+		public Builder clickAction(String clickAction) {
+			mClickAction = clickAction;
+			return this;
+		}
+
+		/**
+		 * Android only. The notification channel ID (Android O or later).
+		 */
+		public Builder androidChannelId(String androidChannelId) {
+			mAndroidChannelId = androidChannelId;
+			return this;
+		}
+
+		public Builder bodyLocKey(String bodyLocKey) {
+			mBodyLocKey = bodyLocKey;
+			return this;
+		}
+
+		public Builder bodyLocArgs(String... bodyLocArgs) {
+			mBodyLocArgs = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(bodyLocArgs)));
+			return this;
+		}
+
+		public Builder titleLocKey(String titleLocKey) {
+			mTitleLocKey = titleLocKey;
+			return this;
+		}
+
+		public Builder titleLocArgs(String... titleLocArgs) {
+			mTitleLocArgs = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(titleLocArgs)));
+			return this;
+		}
+
+		public Notification build() {
+			return new Notification(this);
+		}
+	}
+
+	private Notification(Builder builder) {
+		mTitle = builder.mTitle;
+		mBody = builder.mBody;
+		mIcon = builder.mIcon;
+		mSound = builder.mSound;
+		mBadge = builder.mBadge;
+		mTag = builder.mTag;
+		mColor = builder.mColor;
+		mClickAction = builder.mClickAction;
+		mAndroidChannelId = builder.mAndroidChannelId;
+		mBodyLocKey = builder.mBodyLocKey;
+		mBodyLocArgs = builder.mBodyLocArgs;
+		mTitleLocKey = builder.mTitleLocKey;
+		mTitleLocArgs = builder.mTitleLocArgs;
+	}
+
+	public String getTitle() {
+		return mTitle;
+	}
+
+	public String getBody() {
+		return mBody;
+	}
+
+	public String getIcon() {
+		return mIcon;
+	}
+
+	public String getSound() {
+		return mSound;
+	}
+
+	public String getBadge() {
+		return mBadge;
+	}
+
+	public String getTag() {
+		return mTag;
+	}
+
+	public String getColor() {
+		return mColor;
+	}
+
+	public String getClickAction() {
+		return mClickAction;
+	}
+
+	public String getAndroidChannelId() {
+		return mAndroidChannelId;
+	}
+
+	public String getBodyLocKey() {
+		return mBodyLocKey;
+	}
+
+	public List<String> getBodyLocArgs() {
+		return mBodyLocArgs;
+	}
+
+	public String getTitleLocKey() {
+		return mTitleLocKey;
+	}
+
+	public List<String> getTitleLocArgs() {
+		return mTitleLocArgs;
+	}
+
+	/**
+	 * Generates JSONObject, fields that are not set are skipped
+	 * 
+	 * @return
+	 */
+	public JSONObject toJsonObject() {
+		final JSONObject json = new JSONObject();
+		putIfPresent(json, "title", mTitle);
+		putIfPresent(json, "body", mBody);
+		putIfPresent(json, "icon", mIcon);
+		putIfPresent(json, "sound", mSound);
+		putIfPresent(json, "badge", mBadge);
+		putIfPresent(json, "tag", mTag);
+		putIfPresent(json, "color", mColor);
+		putIfPresent(json, "click_action", mClickAction);
+		putIfPresent(json, "android_channel_id", mAndroidChannelId);
+		putIfPresent(json, "body_loc_key", mBodyLocKey);
+		if (mBodyLocArgs != null) {
+			json.put("body_loc_args", new JSONArray(mBodyLocArgs));
+		}
+		putIfPresent(json, "title_loc_key", mTitleLocKey);
+		if (mTitleLocArgs != null) {
+			json.put("title_loc_args", new JSONArray(mTitleLocArgs));
+		}
+		return json;
+	}
+
+	/**
+	 * Returns the encoded size of the notification payload in bytes
+	 * 
+	 * @return
+	 */
+	public int getEncodedSize() {
+		if (mEncodedSize < 0) {
+			// immutable, so computing once is enough
+			mEncodedSize = toJsonObject().toString().getBytes(StandardCharsets.UTF_8).length;
+		}
+		return mEncodedSize;
+	}
+
+	private static void putIfPresent(JSONObject json, String key, String value) {
+		if (value != null) {
+			json.put(key, value);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Notification " + toJsonObject().toString();
+	}
+}
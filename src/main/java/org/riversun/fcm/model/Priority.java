@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.model;
+
+/**
+ * Priority of the message<br>
+ * <p>
+ * Normal priority messages may be delayed to save battery when the device is
+ * in Doze. High priority messages are delivered immediately and can wake a
+ * sleeping device.
+ * 
+ * {@see https://firebase.google.com/docs/cloud-messaging/http-server-ref}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public enum Priority {
+
+	NORMAL("normal"), HIGH("high");
+
+	private final String mValue;
+
+	private Priority(String value) {
+		mValue = value;
+	}
+
+	/**
+	 * Returns the value sent to FCM
+	 * 
+	 * @return
+	 */
+	public String getValue() {
+		return mValue;
+	}
+}
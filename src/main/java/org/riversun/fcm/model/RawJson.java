@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.model;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Minimal scanner over UTF-8 encoded JSON text<br>
+ * <p>
+ * Positions are byte offsets. Values are skipped without being decoded, so
+ * walking over a large response does not allocate.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+final class RawJson {
+
+	private RawJson() {
+	}
+
+	static int skipWhitespace(byte[] json, int pos) {
+		while (pos < json.length) {
+			final byte b = json[pos];
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns position of the non-whitespace byte expected at or after pos
+	 */
+	static int expect(byte[] json, int pos, char expected) {
+		pos = skipWhitespace(json, pos);
+		if (pos >= json.length || json[pos] != expected) {
+			throw syntaxError(pos, "'" + expected + "' expected");
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns position after the value starting at pos
+	 */
+	static int skipValue(byte[] json, int pos) {
+		pos = skipWhitespace(json, pos);
+		if (pos >= json.length) {
+			throw syntaxError(pos, "value expected");
+		}
+
+		switch (json[pos]) {
+		case '"':
+			return skipString(json, pos);
+		case '{':
+		case '[':
+			int depth = 0;
+			while (pos < json.length) {
+				final byte b = json[pos];
+				if (b == '"') {
+					pos = skipString(json, pos);
+					continue;
+				}
+				if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					depth--;
+					if (depth == 0) {
+						return pos + 1;
+					}
+				}
+				pos++;
+			}
+			throw syntaxError(pos, "unterminated value");
+		default:
+			// number, true, false or null
+			while (pos < json.length) {
+				final byte b = json[pos];
+				if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+					break;
+				}
+				pos++;
+			}
+			return pos;
+		}
+	}
+
+	/**
+	 * Returns position after the string starting at pos
+	 */
+	static int skipString(byte[] json, int pos) {
+		for (int i = pos + 1; i < json.length; i++) {
+			final byte b = json[i];
+			if (b == '\\') {
+				i++;
+			} else if (b == '"') {
+				return i + 1;
+			}
+		}
+		throw syntaxError(pos, "unterminated string");
+	}
+
+	/**
+	 * Returns true if the string starting at pos equals to the ASCII text
+	 * without escapes
+	 */
+	static boolean stringEquals(byte[] json, int pos, String text) {
+		final int len = text.length();
+		if (pos + len + 1 >= json.length || json[pos + len + 1] != '"') {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (json[pos + 1 + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean isNull(byte[] json, int pos) {
+		return pos + 4 <= json.length && json[pos] == 'n' && json[pos + 1] == 'u' && json[pos + 2] == 'l' && json[pos + 3] == 'l';
+	}
+
+	/**
+	 * Decode the string starting at pos, or returns null for JSON null
+	 */
+	static String readString(byte[] json, int pos) {
+		if (isNull(json, pos)) {
+			return null;
+		}
+		if (json[pos] != '"') {
+			throw syntaxError(pos, "string expected");
+		}
+
+		final int end = skipString(json, pos) - 1;
+		StringBuilder sb = null;
+		int runStart = pos + 1;
+
+		for (int i = runStart; i < end; i++) {
+			if (json[i] != '\\') {
+				continue;
+			}
+			if (sb == null) {
+				sb = new StringBuilder(end - pos);
+			}
+			sb.append(new String(json, runStart, i - runStart, StandardCharsets.UTF_8));
+
+			final byte escaped = json[++i];
+			switch (escaped) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 'u':
+				if (i + 4 >= end) {
+					throw syntaxError(i, "illegal escape");
+				}
+				sb.append((char) Integer.parseInt(new String(json, i + 1, 4, StandardCharsets.US_ASCII), 16));
+				i += 4;
+				break;
+			default:
+				// '"', '\\', '/'
+				sb.append((char) escaped);
+			}
+			runStart = i + 1;
+		}
+
+		if (sb == null) {
+			return new String(json, pos + 1, end - pos - 1, StandardCharsets.UTF_8);
+		}
+		sb.append(new String(json, runStart, end - runStart, StandardCharsets.UTF_8));
+		return sb.toString();
+	}
+
+	/**
+	 * Decode the number starting at pos, or returns null for JSON null
+	 */
+	static Long readLong(byte[] json, int pos) {
+		if (isNull(json, pos)) {
+			return null;
+		}
+		final String text = new String(json, pos, skipValue(json, pos) - pos, StandardCharsets.US_ASCII);
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			throw syntaxError(pos, "number expected but " + text);
+		}
+	}
+
+	static JSONException syntaxError(int pos, String message) {
+		return new JSONException(message + " at " + pos);
+	}
+}
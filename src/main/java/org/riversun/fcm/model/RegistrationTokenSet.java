@@ -0,0 +1,423 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.riversun.fcm.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Set of registration tokens<br>
+ * <p>
+ * Tokens are kept as UTF-8 byte arrays (1 byte per char for the ASCII tokens
+ * issued by FCM) in insertion order and indexed by an open addressing hash
+ * table, so add/remove/contains are O(1) and duplicated tokens are ignored.
+ * <p>
+ * Removing a token moves the last token into the removed position.
+ * <p>
+ * {@link #chunks(int)} returns views over the set that do not copy tokens.
+ * Views are invalidated when the set is modified. Byte arrays are shared (never
+ * copied) when tokens are added from a view of another set.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class RegistrationTokenSet implements Iterable<String> {
+
+	/**
+	 * Max number of registration tokens in a multicast request
+	 */
+	public static final int MAX_TOKENS_PER_REQUEST = 1000;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private byte[][] mTokens;
+	private int[] mHashes;
+	private int mSize;
+
+	// slot holds (index of mTokens + 1), 0 means empty
+	private int[] mTable;
+	private int mMask;
+
+	private int mModCount;
+
+	public RegistrationTokenSet() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 *
+	 * @param expectedSize
+	 *            number of tokens expected to be added
+	 */
+	public RegistrationTokenSet(int expectedSize) {
+		final int capacity = Math.max(INITIAL_CAPACITY, expectedSize);
+		mTokens = new byte[capacity][];
+		mHashes = new int[capacity];
+		allocateTable(capacity);
+	}
+
+	/**
+	 * Add specified registration token
+	 *
+	 * @param registrationToken
+	 * @return false if the token is already contained
+	 */
+	public boolean add(String registrationToken) {
+		final byte[] bytes = encode(registrationToken);
+		return add(bytes, hash(bytes));
+	}
+
+	/**
+	 * Add all registration tokens in the specified collection
+	 * <p>
+	 * If the collection is a {@link Chunk}, underlying byte arrays are shared
+	 * without re-encoding.
+	 *
+	 * @param registrationTokens
+	 * @return number of tokens actually added
+	 */
+	public int addAll(Collection<String> registrationTokens) {
+		int added = 0;
+
+		if (registrationTokens instanceof Chunk) {
+			final Chunk chunk = (Chunk) registrationTokens;
+			chunk.checkForComodification();
+			final RegistrationTokenSet src = chunk.mSet;
+			for (int i = chunk.mFrom; i < chunk.mTo; i++) {
+				if (add(src.mTokens[i], src.mHashes[i])) {
+					added++;
+				}
+			}
+			return added;
+		}
+
+		for (String registrationToken : registrationTokens) {
+			if (add(registrationToken)) {
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Remove specified registration token
+	 *
+	 * @param registrationToken
+	 * @return false if the token is not contained
+	 */
+	public boolean remove(String registrationToken) {
+		final byte[] bytes = encode(registrationToken);
+		final int hash = hash(bytes);
+		final int slot = findSlot(bytes, hash);
+		if (slot < 0) {
+			return false;
+		}
+
+		final int index = mTable[slot] - 1;
+		deleteSlot(slot);
+
+		final int last = mSize - 1;
+		if (index != last) {
+			// move the last token to the removed position
+			final int lastSlot = findSlot(mTokens[last], mHashes[last]);
+			mTable[lastSlot] = index + 1;
+			mTokens[index] = mTokens[last];
+			mHashes[index] = mHashes[last];
+		}
+		mTokens[last] = null;
+		mSize--;
+		mModCount++;
+		return true;
+	}
+
+	/**
+	 * Returns true if the specified registration token is contained
+	 *
+	 * @param registrationToken
+	 * @return
+	 */
+	public boolean contains(String registrationToken) {
+		final byte[] bytes = encode(registrationToken);
+		return findSlot(bytes, hash(bytes)) >= 0;
+	}
+
+	/**
+	 * Returns index of the specified registration token, or -1 if not
+	 * contained
+	 *
+	 * @param registrationToken
+	 * @return
+	 */
+	int indexOf(String registrationToken) {
+		final byte[] bytes = encode(registrationToken);
+		final int slot = findSlot(bytes, hash(bytes));
+		return slot < 0 ? -1 : mTable[slot] - 1;
+	}
+
+	/**
+	 * Add the token at the index of the other set, sharing its byte array
+	 *
+	 * @param src
+	 * @param index
+	 * @return false if the token is already contained
+	 */
+	boolean addFrom(RegistrationTokenSet src, int index) {
+		return add(src.mTokens[index], src.mHashes[index]);
+	}
+
+	/**
+	 * Returns the registration token at the specified index
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String get(int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+		}
+		return decode(mTokens[index]);
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * Remove all registration tokens
+	 */
+	public void clear() {
+		Arrays.fill(mTokens, 0, mSize, null);
+		Arrays.fill(mTable, 0);
+		mSize = 0;
+		mModCount++;
+	}
+
+	/**
+	 * Returns all tokens as a String array
+	 *
+	 * @return
+	 */
+	public String[] toArray() {
+		final String[] array = new String[mSize];
+		for (int i = 0; i < mSize; i++) {
+			array[i] = decode(mTokens[i]);
+		}
+		return array;
+	}
+
+	/**
+	 * Returns a view of the tokens in the range [from, to)
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public Chunk chunk(int from, int to) {
+		if (from < 0 || to > mSize || from > to) {
+			throw new IndexOutOfBoundsException("from=" + from + " to=" + to + " size=" + mSize);
+		}
+		return new Chunk(this, from, to);
+	}
+
+	/**
+	 * Returns views of the tokens split by chunkSize
+	 *
+	 * @param chunkSize
+	 * @return
+	 */
+	public List<Chunk> chunks(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		final List<Chunk> chunkList = new ArrayList<Chunk>((mSize + chunkSize - 1) / chunkSize);
+		for (int from = 0; from < mSize; from += chunkSize) {
+			chunkList.add(new Chunk(this, from, Math.min(from + chunkSize, mSize)));
+		}
+		return chunkList;
+	}
+
+	/**
+	 * Returns views of the tokens split by {@link #MAX_TOKENS_PER_REQUEST}
+	 *
+	 * @return
+	 */
+	public List<Chunk> chunks() {
+		return chunks(MAX_TOKENS_PER_REQUEST);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return chunk(0, mSize).iterator();
+	}
+
+	@Override
+	public String toString() {
+		return chunk(0, mSize).toString();
+	}
+
+	/**
+	 * Read-only view over a range of a {@link RegistrationTokenSet}
+	 *
+	 * @author Tom Misawa (riversun.org@gmail.com)
+	 *
+	 */
+	public static class Chunk extends AbstractList<String> {
+
+		private final RegistrationTokenSet mSet;
+		private final int mFrom;
+		private final int mTo;
+		private final int mExpectedModCount;
+
+		private Chunk(RegistrationTokenSet set, int from, int to) {
+			mSet = set;
+			mFrom = from;
+			mTo = to;
+			mExpectedModCount = set.mModCount;
+		}
+
+		@Override
+		public String get(int index) {
+			checkForComodification();
+			if (index < 0 || index >= mTo - mFrom) {
+				throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+			}
+			return decode(mSet.mTokens[mFrom + index]);
+		}
+
+		@Override
+		public int size() {
+			return mTo - mFrom;
+		}
+
+		private void checkForComodification() {
+			if (mSet.mModCount != mExpectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+	}
+
+	private boolean add(byte[] bytes, int hash) {
+		if (findSlot(bytes, hash) >= 0) {
+			return false;
+		}
+
+		if (mSize == mTokens.length) {
+			final int newCapacity = mTokens.length * 2;
+			mTokens = Arrays.copyOf(mTokens, newCapacity);
+			mHashes = Arrays.copyOf(mHashes, newCapacity);
+		}
+		// keep load factor of the table under 0.5
+		if ((mSize + 1) * 2 > mTable.length) {
+			rehash(mTable.length);
+		}
+
+		mTokens[mSize] = bytes;
+		mHashes[mSize] = hash;
+		mTable[emptySlot(hash)] = mSize + 1;
+		mSize++;
+		mModCount++;
+		return true;
+	}
+
+	private int findSlot(byte[] bytes, int hash) {
+		for (int slot = hash & mMask;; slot = (slot + 1) & mMask) {
+			final int entry = mTable[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			final int index = entry - 1;
+			if (mHashes[index] == hash && Arrays.equals(mTokens[index], bytes)) {
+				return slot;
+			}
+		}
+	}
+
+	private int emptySlot(int hash) {
+		int slot = hash & mMask;
+		while (mTable[slot] != 0) {
+			slot = (slot + 1) & mMask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Delete the slot with backward shifting, so that no tombstones are left
+	 */
+	private void deleteSlot(int slot) {
+		int hole = slot;
+		for (int next = (hole + 1) & mMask; mTable[next] != 0; next = (next + 1) & mMask) {
+			final int home = mHashes[mTable[next] - 1] & mMask;
+
+			// move the entry if its home is not in (hole, next]
+			final boolean inRange = (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+			if (!inRange) {
+				mTable[hole] = mTable[next];
+				hole = next;
+			}
+		}
+		mTable[hole] = 0;
+	}
+
+	private void rehash(int minCapacity) {
+		allocateTable(minCapacity);
+		for (int i = 0; i < mSize; i++) {
+			mTable[emptySlot(mHashes[i])] = i + 1;
+		}
+	}
+
+	private void allocateTable(int capacity) {
+		int tableSize = 1;
+		while (tableSize < capacity * 2) {
+			tableSize <<= 1;
+		}
+		mTable = new int[tableSize];
+		mMask = tableSize - 1;
+	}
+
+	private static int hash(byte[] bytes) {
+		final int h = Arrays.hashCode(bytes) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static byte[] encode(String registrationToken) {
+		if (registrationToken == null) {
+			throw new IllegalArgumentException("registrationToken must not be null");
+		}
+		return registrationToken.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String decode(byte[] bytes) {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
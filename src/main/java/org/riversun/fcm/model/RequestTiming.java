@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.model;
+
+/**
+ * Timing of each phase of a request to FCM<br>
+ * <p>
+ * Time stamps are taken by {@link System#nanoTime()}. A stamp is 0 if the
+ * request did not reach that phase.
+ * <p>
+ * Connecting includes the DNS lookup and TLS handshake of a new connection.
+ * It is almost 0 when a kept-alive connection is reused.
+ * <p>
+ * HttpURLConnection buffers the request body and transfers it together with
+ * the request headers, so the transfer time of the body is counted in the
+ * server time, not in the upload time.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class RequestTiming {
+
+	private long mStartNanos;
+	private long mConnectedNanos;
+	private long mRequestSentNanos;
+	private long mResponseStartedNanos;
+	private long mCompletedNanos;
+
+	private long mRequestSize;
+	private long mResponseSize;
+
+	public void markStart() {
+		mStartNanos = System.nanoTime();
+	}
+
+	public void markConnected() {
+		mConnectedNanos = System.nanoTime();
+	}
+
+	public void markRequestSent(long requestSize) {
+		mRequestSentNanos = System.nanoTime();
+		mRequestSize = requestSize;
+	}
+
+	public void markResponseStarted() {
+		mResponseStartedNanos = System.nanoTime();
+	}
+
+	public void markCompleted(long responseSize) {
+		mCompletedNanos = System.nanoTime();
+		mResponseSize = responseSize;
+	}
+
+	public long getStartNanos() {
+		return mStartNanos;
+	}
+
+	public long getConnectedNanos() {
+		return mConnectedNanos;
+	}
+
+	public long getRequestSentNanos() {
+		return mRequestSentNanos;
+	}
+
+	public long getResponseStartedNanos() {
+		return mResponseStartedNanos;
+	}
+
+	public long getCompletedNanos() {
+		return mCompletedNanos;
+	}
+
+	/**
+	 * Returns time to connect including the DNS lookup and TLS handshake
+	 * 
+	 * @return
+	 */
+	public long getConnectNanos() {
+		return elapsed(mStartNanos, mConnectedNanos);
+	}
+
+	/**
+	 * Returns time to upload the request body
+	 * 
+	 * @return
+	 */
+	public long getUploadNanos() {
+		return elapsed(mConnectedNanos, mRequestSentNanos);
+	}
+
+	/**
+	 * Returns time from request sent until response headers received
+	 * 
+	 * @return
+	 */
+	public long getServerNanos() {
+		return elapsed(mRequestSentNanos, mResponseStartedNanos);
+	}
+
+	/**
+	 * Returns time to download the response body
+	 * 
+	 * @return
+	 */
+	public long getDownloadNanos() {
+		return elapsed(mResponseStartedNanos, mCompletedNanos);
+	}
+
+	/**
+	 * Returns time from start until completed or the last reached phase
+	 * 
+	 * @return
+	 */
+	public long getTotalNanos() {
+		final long last = Math.max(Math.max(mConnectedNanos, mRequestSentNanos), Math.max(mResponseStartedNanos, mCompletedNanos));
+		return elapsed(mStartNanos, last);
+	}
+
+	/**
+	 * Returns request body size in bytes
+	 * 
+	 * @return
+	 */
+	public long getRequestSize() {
+		return mRequestSize;
+	}
+
+	/**
+	 * Returns response body size in bytes
+	 * 
+	 * @return
+	 */
+	public long getResponseSize() {
+		return mResponseSize;
+	}
+
+	private static long elapsed(long from, long to) {
+		if (from == 0 || to == 0) {
+			return 0;
+		}
+		return to - from;
+	}
+
+	@Override
+	public String toString() {
+		return "RequestTiming [connect=" + getConnectNanos() + "ns, upload=" + getUploadNanos() + "ns, server=" + getServerNanos() + "ns, download="
+				+ getDownloadNanos() + "ns, total=" + getTotalNanos() + "ns, requestSize=" + mRequestSize + ", responseSize=" + mResponseSize + "]";
+	}
+}
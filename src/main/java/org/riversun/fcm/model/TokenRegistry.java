@@ -0,0 +1,478 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bidirectional index between user ids and registration tokens<br>
+ * <p>
+ * All tokens are kept in a single {@link RegistrationTokenSet} and the tokens
+ * of each user are linked through int arrays, so a token costs its UTF-8
+ * bytes and a few ints regardless of the number of users.
+ * <p>
+ * {@link #lookup(Collection)} collects the tokens of many users into a
+ * {@link RegistrationTokenSet} sharing the byte arrays, ready to be split
+ * into request-sized chunks. {@link #apply(List, FcmResponse)} applies
+ * canonical registration ids and removes invalid tokens reported by FCM in
+ * one step.
+ * <p>
+ * The whole registry can be saved to and loaded from a local file for fast
+ * restart.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class TokenRegistry {
+
+	private static final int SNAPSHOT_MAGIC = 0x46434d52;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final int NONE = -1;
+
+	private final RegistrationTokenSet mTokens = new RegistrationTokenSet();
+
+	// per token, by index of mTokens
+	private int[] mOwners = new int[16];
+	private int[] mNext = new int[16];
+	private int[] mPrev = new int[16];
+
+	// per user
+	private final Map<String, Integer> mUserIndexes = new HashMap<String, Integer>();
+	private String[] mUsers = new String[16];
+	private int[] mHeads = new int[16];
+	private int[] mTokenCounts = new int[16];
+	private int mNumOfUserSlots = 0;
+	private int[] mFreeUserSlots = new int[16];
+	private int mNumOfFreeUserSlots = 0;
+
+	/**
+	 * Register the token of the user
+	 * <p>
+	 * If the token is registered for another user, it is moved to the
+	 * specified user.
+	 * 
+	 * @param userId
+	 * @param registrationToken
+	 * @return false if already registered for the user
+	 */
+	public synchronized boolean register(String userId, String registrationToken) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId must not be null");
+		}
+
+		final int index = mTokens.indexOf(registrationToken);
+		if (index != NONE) {
+			if (mUsers[mOwners[index]].equals(userId)) {
+				return false;
+			}
+			removeAt(index);
+		}
+
+		mTokens.add(registrationToken);
+		link(mTokens.size() - 1, userSlot(userId));
+		return true;
+	}
+
+	/**
+	 * Unregister the token
+	 * 
+	 * @param registrationToken
+	 * @return false if not registered
+	 */
+	public synchronized boolean unregister(String registrationToken) {
+		final int index = mTokens.indexOf(registrationToken);
+		if (index == NONE) {
+			return false;
+		}
+		removeAt(index);
+		return true;
+	}
+
+	/**
+	 * Unregister all tokens of the user
+	 * 
+	 * @param userId
+	 * @return number of tokens unregistered
+	 */
+	public synchronized int removeUser(String userId) {
+		final Integer user = mUserIndexes.get(userId);
+		if (user == null) {
+			return 0;
+		}
+		final int count = mTokenCounts[user];
+		while (mUserIndexes.containsKey(userId)) {
+			removeAt(mHeads[user]);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the user of the token, or null if not registered
+	 * 
+	 * @param registrationToken
+	 * @return
+	 */
+	public synchronized String getUser(String registrationToken) {
+		final int index = mTokens.indexOf(registrationToken);
+		return index == NONE ? null : mUsers[mOwners[index]];
+	}
+
+	/**
+	 * Returns tokens of the user, newest first
+	 * 
+	 * @param userId
+	 * @return empty list if the user has no tokens
+	 */
+	public synchronized List<String> getTokens(String userId) {
+		final Integer user = mUserIndexes.get(userId);
+		if (user == null) {
+			return new ArrayList<String>(0);
+		}
+		final List<String> tokens = new ArrayList<String>(mTokenCounts[user]);
+		for (int index = mHeads[user]; index != NONE; index = mNext[index]) {
+			tokens.add(mTokens.get(index));
+		}
+		return tokens;
+	}
+
+	/**
+	 * Collect tokens of the users
+	 * <p>
+	 * Byte arrays of the tokens are shared with the registry. Use
+	 * {@link RegistrationTokenSet#chunks()} to split them into requests.
+	 * 
+	 * @param userIds
+	 * @return
+	 */
+	public synchronized RegistrationTokenSet lookup(Collection<String> userIds) {
+		final RegistrationTokenSet result = new RegistrationTokenSet(userIds.size());
+		for (String userId : userIds) {
+			final Integer user = mUserIndexes.get(userId);
+			if (user == null) {
+				continue;
+			}
+			for (int index = mHeads[user]; index != NONE; index = mNext[index]) {
+				result.addFrom(mTokens, index);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns messages with the payload of the template, each sent to a chunk
+	 * of the tokens of the users
+	 * <p>
+	 * The messages share the encoded tokens of the lookup result, so they are
+	 * decoded only when a message is serialized.
+	 * 
+	 * @param template
+	 * @param userIds
+	 * @return
+	 */
+	public List<ImmutableEntityMessage> fanOut(ImmutableEntityMessage template, Collection<String> userIds) {
+		final List<RegistrationTokenSet.Chunk> chunks = lookup(userIds).chunks();
+		final List<ImmutableEntityMessage> messages = new ArrayList<ImmutableEntityMessage>(chunks.size());
+		for (RegistrationTokenSet.Chunk chunk : chunks) {
+			// the set is private to this call, so the encoded tokens are shared
+			messages.add(template.withSharedRegistrationTokens(chunk));
+		}
+		return messages;
+	}
+
+	/**
+	 * Apply the response to the tokens the request was sent to
+	 * <p>
+	 * Tokens with a canonical registration id are replaced by it for the same
+	 * user, and tokens reported as NotRegistered or InvalidRegistration are
+	 * unregistered. All changes are applied at once, so other threads never
+	 * see a partially applied response.
+	 * 
+	 * @param registrationTokens
+	 *            tokens in the same order as the results
+	 * @param response
+	 * @return number of tokens replaced or unregistered
+	 */
+	public int apply(final List<String> registrationTokens, FcmResponse response) {
+		if (response == null || !response.isEnabled()) {
+			return 0;
+		}
+
+		final List<String[]> replacements = new ArrayList<String[]>();
+		final List<String> invalidTokens = new ArrayList<String>();
+
+		response.forEachCanonicalId(new FcmResponse.CanonicalIdVisitor() {
+			@Override
+			public void onCanonicalId(int index, String registrationId) {
+				if (index < registrationTokens.size()) {
+					replacements.add(new String[] { registrationTokens.get(index), registrationId });
+				}
+			}
+		});
+		response.forEachFailure(new FcmResponse.FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				if (index < registrationTokens.size() && ("NotRegistered".equals(error) || "InvalidRegistration".equals(error))) {
+					invalidTokens.add(registrationTokens.get(index));
+				}
+			}
+		});
+
+		if (replacements.isEmpty() && invalidTokens.isEmpty()) {
+			return 0;
+		}
+
+		int changed = 0;
+		synchronized (this) {
+			for (String[] replacement : replacements) {
+				final int index = mTokens.indexOf(replacement[0]);
+				if (index == NONE) {
+					continue;
+				}
+				final String userId = mUsers[mOwners[index]];
+				removeAt(index);
+				register(userId, replacement[1]);
+				changed++;
+			}
+			for (String invalidToken : invalidTokens) {
+				if (unregister(invalidToken)) {
+					changed++;
+				}
+			}
+		}
+		return changed;
+	}
+
+	public synchronized int getTokenCount() {
+		return mTokens.size();
+	}
+
+	public synchronized int getUserCount() {
+		return mUserIndexes.size();
+	}
+
+	/**
+	 * Remove all users and tokens
+	 */
+	public synchronized void clear() {
+		mTokens.clear();
+		mUserIndexes.clear();
+		Arrays.fill(mUsers, null);
+		mNumOfUserSlots = 0;
+		mNumOfFreeUserSlots = 0;
+	}
+
+	/**
+	 * Save all users and tokens to the file
+	 * <p>
+	 * The snapshot is written to a temporary file in the same directory and
+	 * then moved to the file, so the file is never left half-written.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void save(Path file) throws IOException {
+		final Path dir = file.toAbsolutePath().getParent();
+		final Path tmpFile = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+		try {
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)));
+			try {
+				dos.writeInt(SNAPSHOT_MAGIC);
+				dos.writeInt(SNAPSHOT_VERSION);
+				dos.writeInt(mUserIndexes.size());
+				for (Map.Entry<String, Integer> entry : mUserIndexes.entrySet()) {
+					final int user = entry.getValue();
+					dos.writeUTF(entry.getKey());
+					dos.writeInt(mTokenCounts[user]);
+
+					// oldest first, so that the order is kept after loading
+					int index = mHeads[user];
+					while (mNext[index] != NONE) {
+						index = mNext[index];
+					}
+					for (; index != NONE; index = mPrev[index]) {
+						dos.writeUTF(mTokens.get(index));
+					}
+				}
+			} finally {
+				dos.close();
+			}
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Replace all users and tokens with the snapshot saved by
+	 * {@link #save(Path)}
+	 * 
+	 * @param file
+	 * @throws IOException
+	 *             if the file cannot be read or is not a snapshot. The
+	 *             registry is left unchanged.
+	 */
+	public void load(Path file) throws IOException {
+		final Map<String, List<String>> snapshot = new HashMap<String, List<String>>();
+
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+		try {
+			if (dis.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(file + " is not a token registry snapshot");
+			}
+			final int version = dis.readInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+			final int numOfUsers = dis.readInt();
+			for (int i = 0; i < numOfUsers; i++) {
+				final String userId = dis.readUTF();
+				final int numOfTokens = dis.readInt();
+				final List<String> tokens = new ArrayList<String>(numOfTokens);
+				for (int j = 0; j < numOfTokens; j++) {
+					tokens.add(dis.readUTF());
+				}
+				snapshot.put(userId, tokens);
+			}
+		} finally {
+			dis.close();
+		}
+
+		synchronized (this) {
+			clear();
+			for (Map.Entry<String, List<String>> entry : snapshot.entrySet()) {
+				for (String token : entry.getValue()) {
+					register(entry.getKey(), token);
+				}
+			}
+		}
+	}
+
+	private int userSlot(String userId) {
+		final Integer existing = mUserIndexes.get(userId);
+		if (existing != null) {
+			return existing;
+		}
+
+		final int user;
+		if (mNumOfFreeUserSlots > 0) {
+			user = mFreeUserSlots[--mNumOfFreeUserSlots];
+		} else {
+			if (mNumOfUserSlots == mUsers.length) {
+				final int newCapacity = mUsers.length * 2;
+				mUsers = Arrays.copyOf(mUsers, newCapacity);
+				mHeads = Arrays.copyOf(mHeads, newCapacity);
+				mTokenCounts = Arrays.copyOf(mTokenCounts, newCapacity);
+			}
+			user = mNumOfUserSlots++;
+		}
+		mUsers[user] = userId;
+		mHeads[user] = NONE;
+		mTokenCounts[user] = 0;
+		mUserIndexes.put(userId, user);
+		return user;
+	}
+
+	/**
+	 * Link the token at the head of the tokens of the user
+	 */
+	private void link(int index, int user) {
+		if (index == mOwners.length) {
+			final int newCapacity = mOwners.length * 2;
+			mOwners = Arrays.copyOf(mOwners, newCapacity);
+			mNext = Arrays.copyOf(mNext, newCapacity);
+			mPrev = Arrays.copyOf(mPrev, newCapacity);
+		}
+		mOwners[index] = user;
+		mPrev[index] = NONE;
+		mNext[index] = mHeads[user];
+		if (mHeads[user] != NONE) {
+			mPrev[mHeads[user]] = index;
+		}
+		mHeads[user] = index;
+		mTokenCounts[user]++;
+	}
+
+	/**
+	 * Remove the token at the index, following the move of the last token
+	 * into the index by {@link RegistrationTokenSet#remove(String)}
+	 */
+	private void removeAt(int index) {
+		final int user = mOwners[index];
+
+		// unlink from the user
+		if (mPrev[index] != NONE) {
+			mNext[mPrev[index]] = mNext[index];
+		} else {
+			mHeads[user] = mNext[index];
+		}
+		if (mNext[index] != NONE) {
+			mPrev[mNext[index]] = mPrev[index];
+		}
+		if (--mTokenCounts[user] == 0) {
+			releaseUserSlot(user);
+		}
+
+		final int last = mTokens.size() - 1;
+		mTokens.remove(mTokens.get(index));
+
+		if (index != last) {
+			// the last token has been moved to the index
+			mOwners[index] = mOwners[last];
+			mPrev[index] = mPrev[last];
+			mNext[index] = mNext[last];
+			if (mPrev[index] != NONE) {
+				mNext[mPrev[index]] = index;
+			} else {
+				mHeads[mOwners[index]] = index;
+			}
+			if (mNext[index] != NONE) {
+				mPrev[mNext[index]] = index;
+			}
+		}
+	}
+
+	private void releaseUserSlot(int user) {
+		mUserIndexes.remove(mUsers[user]);
+		mUsers[user] = null;
+		if (mNumOfFreeUserSlots == mFreeUserSlots.length) {
+			mFreeUserSlots = Arrays.copyOf(mFreeUserSlots, mFreeUserSlots.length * 2);
+		}
+		mFreeUserSlots[mNumOfFreeUserSlots++] = user;
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.util;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel<br>
+ * <p>
+ * Entries are put into linked lists in slots, so inserting is O(1)
+ * regardless of the number of pending entries. The wheel has
+ * {@value #LEVELS} levels of {@value #SLOTS} slots. Level 0 covers the next
+ * {@value #SLOTS} ticks, and each upper level covers {@value #SLOTS} times
+ * longer. When a lower level goes around, entries in the corresponding slot
+ * of the upper level are moved down (cascaded). Entries beyond the top level
+ * are kept in the top level and cascaded until they come into range.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ * @param <T>
+ */
+public class HierarchicalTimingWheel<T> {
+
+	private static final int LEVELS = 5;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	/**
+	 * Receives expired entries
+	 *
+	 * @param <T>
+	 */
+	public interface ExpiredHandler<T> {
+		public void onExpired(T value);
+	}
+
+	private static class Node<T> {
+		final long deadlineTick;
+		final T value;
+		Node<T> next;
+
+		Node(long deadlineTick, T value) {
+			this.deadlineTick = deadlineTick;
+			this.value = value;
+		}
+	}
+
+	private final long mTickMillis;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Node<T>[][] mSlots = new Node[LEVELS][SLOTS];
+	private final int[] mLevelCounts = new int[LEVELS];
+
+	// next tick to be processed
+	private long mCurrentTick;
+	private int mSize;
+
+	/**
+	 * 
+	 * @param tickMillis
+	 *            resolution of the wheel
+	 * @param startMillis
+	 *            current time in milliseconds
+	 */
+	public HierarchicalTimingWheel(long tickMillis, long startMillis) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tickMillis must be positive");
+		}
+		mTickMillis = tickMillis;
+		mCurrentTick = startMillis / tickMillis;
+	}
+
+	/**
+	 * Add the entry
+	 * <p>
+	 * An entry whose deadline has already passed expires at the next advance.
+	 * 
+	 * @param deadlineMillis
+	 * @param value
+	 */
+	public void add(long deadlineMillis, T value) {
+		insert(new Node<T>(Math.max(deadlineMillis / mTickMillis, mCurrentTick), value));
+		mSize++;
+	}
+
+	/**
+	 * Advance the wheel to the specified time and pass expired entries to the
+	 * handler in deadline order (by tick)
+	 * <p>
+	 * Ticks before the next cascade of the lowest non-empty level are skipped,
+	 * so advancing over a long idle period is cheap.
+	 * 
+	 * @param nowMillis
+	 * @param handler
+	 */
+	public void advance(long nowMillis, ExpiredHandler<T> handler) {
+		final long nowTick = nowMillis / mTickMillis;
+
+		while (mCurrentTick <= nowTick) {
+			final long tick = mCurrentTick;
+
+			// cascade from the top so that entries fall through all levels
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					cascade(level, (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+				}
+			}
+
+			final int slot = (int) (tick & SLOT_MASK);
+			Node<T> node = mSlots[0][slot];
+			mSlots[0][slot] = null;
+			mCurrentTick = tick + 1;
+
+			while (node != null) {
+				final Node<T> next = node.next;
+				mLevelCounts[0]--;
+				mSize--;
+				handler.onExpired(node.value);
+				node = next;
+			}
+
+			skipEmptyTicks(nowTick);
+		}
+	}
+
+	/**
+	 * Jump over ticks where nothing happens, that is, until the next cascade
+	 * from the lowest non-empty level
+	 */
+	private void skipEmptyTicks(long nowTick) {
+		if (mSize == 0) {
+			mCurrentTick = Math.max(mCurrentTick, nowTick + 1);
+			return;
+		}
+
+		int level = 0;
+		while (mLevelCounts[level] == 0) {
+			level++;
+		}
+		if (level == 0) {
+			return;
+		}
+
+		// next multiple of SLOTS^level
+		final int shift = SLOT_BITS * level;
+		final long boundary = ((mCurrentTick + (1L << shift) - 1) >>> shift) << shift;
+		mCurrentTick = Math.max(mCurrentTick, Math.min(boundary, nowTick + 1));
+	}
+
+	/**
+	 * Returns number of pending entries
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Remove all pending entries
+	 */
+	public void clear() {
+		for (int level = 0; level < LEVELS; level++) {
+			Arrays.fill(mSlots[level], null);
+		}
+		Arrays.fill(mLevelCounts, 0);
+		mSize = 0;
+	}
+
+	public long getTickMillis() {
+		return mTickMillis;
+	}
+
+	private void cascade(int level, int slot) {
+		Node<T> node = mSlots[level][slot];
+		mSlots[level][slot] = null;
+		while (node != null) {
+			final Node<T> next = node.next;
+			mLevelCounts[level]--;
+			insert(node);
+			node = next;
+		}
+	}
+
+	private void insert(Node<T> node) {
+		final long delta = node.deadlineTick - mCurrentTick;
+
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		final int slot = (int) ((node.deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+		node.next = mSlots[level][slot];
+		mSlots[level][slot] = node;
+		mLevelCounts[level]++;
+	}
+}
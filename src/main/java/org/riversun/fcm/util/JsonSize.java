@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.riversun.fcm.util;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * Computes the UTF-8 encoded size of JSON values without building the JSON
+ * text<br>
+ * The escaping rules follow {@link JSONObject#quote(String)} so that the
+ * counted size matches what is actually sent on the wire.
+ *
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public final class JsonSize {
+
+	private JsonSize() {
+	}
+
+	/**
+	 * Returns the encoded size of the quoted JSON string in bytes
+	 *
+	 * @param text
+	 * @return
+	 */
+	public static int quotedSize(String text) {
+
+		if (text == null) {
+			// JSONObject#quote writes "" for null
+			return 2;
+		}
+
+		int size = 2;
+		final int len = text.length();
+		char prev = 0;
+
+		for (int i = 0; i < len; i++) {
+			final char c = text.charAt(i);
+
+			switch (c) {
+			case '"':
+			case '\\':
+			case '\b':
+			case '\t':
+			case '\n':
+			case '\f':
+			case '\r':
+				size += 2;
+				break;
+			case '/':
+				size += (prev == '<') ? 2 : 1;
+				break;
+			default:
+				if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+					// escaped as a unicode sequence
+					size += 6;
+				} else if (c < 0x80) {
+					size += 1;
+				} else if (c < 0x800) {
+					size += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+					size += 4;
+					i++;
+				} else if (Character.isSurrogate(c)) {
+					// unpaired surrogate is replaced by '?'
+					size += 1;
+				} else {
+					size += 3;
+				}
+			}
+			prev = c;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the encoded size of the JSON value in bytes
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static int valueSize(Object value) {
+
+		if (value == null || value == JSONObject.NULL) {
+			return 4;
+		}
+		if (value instanceof String) {
+			return quotedSize((String) value);
+		}
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue() ? 4 : 5;
+		}
+
+		// numbers, maps, collections and beans are rare in the payload, so
+		// let org.json render them
+		return JSONObject.valueToString(value).getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * Returns the encoded size of the <code>"key":value</code> member in bytes
+	 * <p>
+	 * A null value is 0 because org.json drops the member.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public static int memberSize(String key, Object value) {
+		if (value == null) {
+			return 0;
+		}
+		return quotedSize(key) + 1 + valueSize(value);
+	}
+}
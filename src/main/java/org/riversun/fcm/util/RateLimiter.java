@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.fcm.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out permits evenly to keep the rate<br>
+ * <p>
+ * The rate can be changed at any time, and threads waiting for a permit
+ * follow the new rate immediately. A rate of 0 means unlimited.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ *
+ */
+public class RateLimiter {
+
+	private double mPermitsPerSecond;
+	private long mIntervalNanos;
+	private long mNextFreeNanos;
+
+	/**
+	 * 
+	 * @param permitsPerSecond
+	 *            0 means unlimited
+	 */
+	public RateLimiter(double permitsPerSecond) {
+		setRate(permitsPerSecond);
+	}
+
+	/**
+	 * 
+	 * @param permitsPerSecond
+	 *            0 means unlimited
+	 */
+	public synchronized void setRate(double permitsPerSecond) {
+		if (permitsPerSecond < 0 || Double.isNaN(permitsPerSecond)) {
+			throw new IllegalArgumentException("permitsPerSecond must not be negative");
+		}
+		mPermitsPerSecond = permitsPerSecond;
+		mIntervalNanos = permitsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+		mNextFreeNanos = System.nanoTime();
+
+		// waiters reschedule at the new rate
+		notifyAll();
+	}
+
+	public synchronized double getRate() {
+		return mPermitsPerSecond;
+	}
+
+	/**
+	 * Wait until a permit is available
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (mIntervalNanos != 0) {
+			final long now = System.nanoTime();
+			final long waitNanos = mNextFreeNanos - now;
+			if (waitNanos <= 0) {
+				// keep the schedule if woken up late, but do not accumulate
+				// permits while idle
+				final long free = now - mNextFreeNanos < mIntervalNanos ? mNextFreeNanos : now;
+				mNextFreeNanos = free + mIntervalNanos;
+				return;
+			}
+
+			// not a sleep, so that setRate can wake up the waiters
+			TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+		}
+	}
+}
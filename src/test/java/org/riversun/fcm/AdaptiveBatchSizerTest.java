@@ -0,0 +1,115 @@
+package org.riversun.fcm;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.RequestTiming;
+
+/**
+ * UT for AdaptiveBatchSizer
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class AdaptiveBatchSizerTest {
+
+	private static FcmResponse response(int success, String... errors) {
+		final StringBuilder results = new StringBuilder();
+		for (int i = 0; i < success; i++) {
+			results.append(results.length() > 0 ? "," : "").append("{\"message_id\":\"0:").append(i).append("\"}");
+		}
+		for (String error : errors) {
+			results.append(results.length() > 0 ? "," : "").append("{\"error\":\"").append(error).append("\"}");
+		}
+		final String body = "{\"multicast_id\":1,\"success\":" + success + ",\"failure\":" + errors.length + ",\"canonical_ids\":0,\"results\":[" + results + "]}";
+		return new FcmResponse(200, body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] errors(int count, String error) {
+		final String[] errors = new String[count];
+		Arrays.fill(errors, error);
+		return errors;
+	}
+
+	@Test
+	public void test_additive_increase_multiplicative_decrease() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 110, 1000, 0.2);
+		assertEquals(10, sizer.getBatchSize());
+
+		// grows by a tenth of the range per full batch up to the max
+		sizer.record(10, response(10));
+		assertEquals(20, sizer.getBatchSize());
+		for (int i = 0; i < 20; i++) {
+			sizer.record(sizer.getBatchSize(), response(sizer.getBatchSize()));
+		}
+		assertEquals(110, sizer.getBatchSize());
+
+		// partial batch does not grow
+		sizer.record(5, response(5));
+		assertEquals(110, sizer.getBatchSize());
+
+		// invalid tokens are not failures
+		sizer.record(4, response(0, "NotRegistered", "InvalidRegistration", "NotRegistered", "NotRegistered"));
+		assertEquals(110, sizer.getBatchSize());
+
+		// halved by failures, late responses of bigger batches do not cascade
+		sizer.record(110, response(80, errors(30, "Unavailable")));
+		assertEquals(55, sizer.getBatchSize());
+		sizer.record(110, null);
+		assertEquals(55, sizer.getBatchSize());
+		sizer.record(5, response(3, "Unavailable", "Unavailable"));
+		assertEquals(27, sizer.getBatchSize());
+		sizer.record(27, null);
+		sizer.record(13, null);
+		assertEquals(10, sizer.getBatchSize());
+	}
+
+	@Test
+	public void test_decrease_by_latency() throws Exception {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1000, 10, 0.05);
+		sizer.record(10, response(10));
+		sizer.record(109, response(109));
+		assertEquals(208, sizer.getBatchSize());
+
+		RequestTiming timing = new RequestTiming();
+		timing.markStart();
+		Thread.sleep(20);
+		timing.markCompleted(0);
+		FcmResponse res = response(208);
+		res.setTiming(timing);
+		sizer.record(208, res);
+		assertEquals(156, sizer.getBatchSize());
+	}
+
+	@Test
+	public void test_client_batch_size() {
+		FcmClient client = new FcmClient();
+		assertEquals(1000, client.getMXBean().getBatchSize());
+		client.setAdaptiveBatchSizer(new AdaptiveBatchSizer());
+		assertEquals(100, client.getMXBean().getBatchSize());
+	}
+}
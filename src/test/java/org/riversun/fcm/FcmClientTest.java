@@ -0,0 +1,602 @@
+package org.riversun.fcm;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.RequestTiming;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for FcmClient against a local stub endpoint
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class FcmClientTest {
+
+	private HttpServer mServer;
+	private String mEndpoint;
+
+	private final AtomicInteger mNumOfRequests = new AtomicInteger();
+	private final List<JSONObject> mRequests = Collections.synchronizedList(new ArrayList<JSONObject>());
+	private volatile boolean mUnavailable = false;
+
+	@Before
+	public void setUp() throws Exception {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.createContext("/fcm/send", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final JSONObject req = new JSONObject(readFully(exchange.getRequestBody()));
+				mNumOfRequests.incrementAndGet();
+				mRequests.add(req);
+
+				// tokens succeed unless named "invalid..." or "flaky..." while
+				// unavailable
+				final JSONArray tokens = req.getJSONArray("registration_ids");
+				final JSONArray results = new JSONArray();
+				int failure = 0;
+				for (int i = 0; i < tokens.length(); i++) {
+					final String token = tokens.getString(i);
+					if (token.startsWith("invalid")) {
+						results.put(new JSONObject().put("error", "NotRegistered"));
+						failure++;
+					} else if (token.startsWith("flaky") && mUnavailable) {
+						results.put(new JSONObject().put("error", "Unavailable"));
+						failure++;
+					} else {
+						results.put(new JSONObject().put("message_id", "0:" + i));
+					}
+				}
+				final JSONObject res = new JSONObject();
+				res.put("multicast_id", 1);
+				res.put("success", tokens.length() - failure);
+				res.put("failure", failure);
+				res.put("canonical_ids", 0);
+				res.put("results", results);
+
+				final byte[] body = res.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		mServer.start();
+		mEndpoint = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/fcm/send";
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mServer.stop(0);
+	}
+
+	private static String readFully(InputStream is) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		for (int len; (len = is.read(buf)) > 0;) {
+			baos.write(buf, 0, len);
+		}
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private FcmClient newClient() {
+		final FcmClient client = new FcmClient(mEndpoint);
+		client.setAPIKey("test");
+		return client;
+	}
+
+	@Test
+	public void test_push_to_entities() {
+		EntityMessage msg = new EntityMessage();
+		msg.addRegistrationToken("token1");
+		msg.addRegistrationToken("token2");
+		msg.putStringData("myKey1", "myValue1");
+
+		FcmResponse res = newClient().pushToEntities(msg);
+		assertEquals(200, res.getHttpResponseCode());
+		assertEquals(2, (int) res.getSuccess());
+		assertEquals("myValue1", mRequests.get(0).getJSONObject("data").getString("myKey1"));
+
+		RequestTiming timing = res.getTiming();
+		assertTrue(timing.getTotalNanos() > 0);
+		assertTrue(timing.getRequestSize() > 0);
+		assertTrue(timing.getResponseSize() > 0);
+		assertEquals(timing.getTotalNanos(), timing.getConnectNanos() + timing.getUploadNanos() + timing.getServerNanos() + timing.getDownloadNanos());
+	}
+
+	@Test
+	public void test_slow_request_log() {
+		FcmClient client = newClient();
+		client.setSlowRequestLogSize(2);
+
+		for (int i = 0; i < 5; i++) {
+			EntityMessage msg = new EntityMessage();
+			msg.addRegistrationToken("token" + i);
+			client.pushToEntities(msg);
+		}
+
+		List<SlowRequestLog.SlowRequest> slowRequests = client.getSlowRequestLog().getSlowRequests();
+		assertEquals(2, slowRequests.size());
+		assertTrue(slowRequests.get(0).getTiming().getTotalNanos() >= slowRequests.get(1).getTiming().getTotalNanos());
+		assertEquals(200, slowRequests.get(0).getHttpResponseCode());
+		assertNotNull(slowRequests.get(0).getResponseHeaders().get("Content-type"));
+	}
+
+	@Test
+	public void test_push_to_audience_iterator() {
+		EntityMessage msg = new EntityMessage();
+		msg.putStringData("myKey1", "myValue1");
+
+		Iterator<String> tokens = IntStream.range(0, 2500).mapToObj(i -> "token" + i).iterator();
+		final AtomicInteger succeeded = new AtomicInteger();
+
+		FcmClient client = newClient();
+		client.setMaxInFlightRequests(2);
+		long numOfTokens = client.pushToAudience(msg, tokens, new AudienceListener() {
+			@Override
+			public void onChunkSent(List<String> registrationTokens, FcmResponse response) {
+				succeeded.addAndGet(response.getSuccess());
+			}
+		});
+
+		assertEquals(2500, numOfTokens);
+		assertEquals(3, mNumOfRequests.get());
+		assertEquals(2500, succeeded.get());
+	}
+
+	@Test
+	public void test_push_to_audience_iterator_fails() {
+		final Iterator<String> source = IntStream.range(0, 2500).mapToObj(i -> "token" + i).iterator();
+		Iterator<String> tokens = new Iterator<String>() {
+
+			private int mCount = 0;
+
+			@Override
+			public boolean hasNext() {
+				return source.hasNext();
+			}
+
+			@Override
+			public String next() {
+				if (++mCount > 1500) {
+					throw new IllegalStateException("read error");
+				}
+				return source.next();
+			}
+		};
+		final AtomicInteger chunks = new AtomicInteger();
+
+		FcmClient client = newClient();
+		client.setMaxInFlightRequests(2);
+		try {
+			client.pushToAudience(new EntityMessage(), tokens, new AudienceListener() {
+				@Override
+				public void onChunkSent(List<String> registrationTokens, FcmResponse response) {
+					chunks.incrementAndGet();
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// the chunk in flight has completed before returning
+			assertEquals(1, chunks.get());
+		}
+	}
+
+	@Test
+	public void test_push_to_audience_file() throws IOException {
+		Path file = Files.createTempFile("tokens", ".txt");
+		try {
+			List<String> lines = new ArrayList<String>();
+			for (int i = 0; i < 1001; i++) {
+				lines.add("token" + i);
+			}
+			lines.add("");
+			Files.write(file, lines, StandardCharsets.UTF_8);
+
+			long numOfTokens = newClient().pushToAudience(new EntityMessage(), file, null);
+			assertEquals(1001, numOfTokens);
+			assertEquals(2, mNumOfRequests.get());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void test_push_pipeline_ordered() throws InterruptedException {
+		final List<EntityMessage> delivered = Collections.synchronizedList(new ArrayList<EntityMessage>());
+
+		PushPipeline pipeline = new PushPipeline(newClient(), 4, 8, true, new PushPipeline.Listener() {
+			@Override
+			public void onResponse(EntityMessage msg, List<String> registrationTokens, FcmResponse response) {
+				delivered.add(msg);
+			}
+		});
+
+		List<EntityMessage> submitted = new ArrayList<EntityMessage>();
+		for (int i = 0; i < 50; i++) {
+			EntityMessage msg = new EntityMessage();
+			msg.addRegistrationToken("token" + i);
+			msg.putStringData("seq", String.valueOf(i));
+			pipeline.submit(msg);
+			submitted.add(msg);
+			assertTrue(pipeline.getPendingCount() <= 8);
+		}
+
+		// a message without tokens would never get a response
+		try {
+			pipeline.offer(new EntityMessage());
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		assertTrue(pipeline.close(10, TimeUnit.SECONDS));
+
+		assertEquals(50, mNumOfRequests.get());
+		assertEquals(submitted, delivered);
+	}
+
+	@Test
+	public void test_dedup_cache() {
+		FcmClient client = newClient();
+		client.setDedupCache(new DedupCache(60000, 1000));
+
+		EntityMessage msg = new EntityMessage();
+		msg.setIdempotencyKey("notification-1");
+		msg.addRegistrationToken("token1");
+		msg.addRegistrationToken("token2");
+
+		FcmResponse res = client.pushToEntities(msg);
+		assertEquals(2, (int) res.getSuccess());
+		assertEquals(0, res.getSuppressedCount());
+
+		// retried by upstream with a new token
+		msg.addRegistrationToken("token3");
+		res = client.pushToEntities(msg);
+		assertEquals(1, (int) res.getSuccess());
+		assertEquals(2, res.getSuppressedCount());
+		assertEquals(Collections.singletonList("token3"), res.getRegistrationTokens());
+		assertEquals(1, mRequests.get(1).getJSONArray("registration_ids").length());
+
+		// all duplicated
+		res = client.pushToEntities(msg);
+		assertEquals(0, res.getHttpResponseCode());
+		assertEquals(3, res.getSuppressedCount());
+		assertEquals(2, mNumOfRequests.get());
+
+		// another key
+		msg.setIdempotencyKey("notification-2");
+		res = client.pushToEntities(msg);
+		assertEquals(3, (int) res.getSuccess());
+	}
+
+	@Test
+	public void test_dedup_cache_oversized_message() {
+		FcmClient client = newClient();
+		client.setDedupCache(new DedupCache(60000, 1000));
+
+		EntityMessage msg = new EntityMessage();
+		msg.setIdempotencyKey("notification-1");
+		msg.addRegistrationToken("token1");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < EntityMessage.MAX_PAYLOAD_SIZE; i++) {
+			sb.append('x');
+		}
+		msg.putStringData("large", sb.toString());
+
+		try {
+			client.pushToEntities(msg);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(0, mNumOfRequests.get());
+
+		// fixed and retried with the same key
+		msg.putStringData("large", "x");
+		FcmResponse res = client.pushToEntities(msg);
+		assertEquals(1, (int) res.getSuccess());
+		assertEquals(0, res.getSuppressedCount());
+		assertEquals(1, mNumOfRequests.get());
+	}
+
+	@Test
+	public void test_dedup_cache_all_send_paths() throws Exception {
+		FcmClient client = newClient();
+		client.setDedupCache(new DedupCache(60000, 1000));
+
+		EntityMessage msg = new EntityMessage();
+		msg.setIdempotencyKey("notification-1");
+		msg.addRegistrationToken("token1");
+		msg.addRegistrationToken("token2");
+
+		// retried by upstream through the pipeline
+		final List<FcmResponse> responses = Collections.synchronizedList(new ArrayList<FcmResponse>());
+		PushPipeline pipeline = new PushPipeline(client, 1, 2, true, new PushPipeline.Listener() {
+			@Override
+			public void onResponse(EntityMessage msg, List<String> registrationTokens, FcmResponse response) {
+				responses.add(response);
+			}
+		});
+		pipeline.submit(msg);
+		pipeline.submit(msg);
+		assertTrue(pipeline.close(10, TimeUnit.SECONDS));
+		assertEquals(1, mNumOfRequests.get());
+		assertEquals(2, responses.size());
+		assertEquals(2, responses.get(1).getSuppressedCount());
+
+		// pushed to an audience with a new token
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		client.pushToAudience(msg, Arrays.asList("token1", "token3").iterator(), new AudienceListener() {
+			@Override
+			public void onChunkSent(List<String> registrationTokens, FcmResponse response) {
+				sent.addAll(registrationTokens);
+			}
+		});
+		assertEquals(Arrays.asList("token3"), sent);
+		assertEquals(2, mNumOfRequests.get());
+
+		// campaign counts the dropped tokens as sent
+		Path file = Files.createTempFile("campaign", ".bin");
+		Files.delete(file);
+		try {
+			Campaign.Progress progress = new Campaign(client, msg, Arrays.asList("token2", "token4", "token3"), file).run();
+			assertTrue(progress.isCompleted());
+			assertEquals(3, progress.getSent());
+			assertEquals(3, mNumOfRequests.get());
+			assertEquals("token4", mRequests.get(2).getJSONArray("registration_ids").getString(0));
+			assertEquals(1, mRequests.get(2).getJSONArray("registration_ids").length());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void test_dead_letter_and_replay() throws IOException, InterruptedException {
+		Path file = Files.createTempFile("deadletters", ".jsonl");
+		FileDeadLetterSink sink = new FileDeadLetterSink(file);
+		try {
+			// unreachable endpoint
+			FcmClient client = new FcmClient("http://127.0.0.1:" + mServer.getAddress().getPort() + "/unknown");
+			client.setDeadLetterSink(sink);
+
+			EntityMessage msg = new EntityMessage();
+			msg.addRegistrationToken("token1");
+			FcmResponse res = client.pushToEntities(msg);
+			assertEquals(404, res.getHttpResponseCode());
+
+			client = new FcmClient("not a url");
+			client.setDeadLetterSink(sink);
+			assertNull(client.pushToEntities(msg));
+			sink.close();
+
+			List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+			assertEquals(2, lines.size());
+			DeadLetter deadLetter = DeadLetter.fromJson(lines.get(0));
+			assertEquals(404, deadLetter.getHttpResponseCode());
+			assertEquals("token1", new JSONObject(deadLetter.getRequestText()).getJSONArray("registration_ids").get(0));
+
+			int numOfSucceeded = new DeadLetterReplayer(newClient(), 100).replay(file);
+			assertEquals(2, numOfSucceeded);
+			assertEquals(2, mNumOfRequests.get());
+		} finally {
+			sink.close();
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void test_dead_letter_retryable_results() {
+		final List<DeadLetter> deadLetters = Collections.synchronizedList(new ArrayList<DeadLetter>());
+		FcmClient client = newClient();
+		client.setDeadLetterSink(new DeadLetterSink() {
+			@Override
+			public void onDeadLetter(DeadLetter deadLetter) {
+				deadLetters.add(deadLetter);
+			}
+		});
+
+		EntityMessage msg = new EntityMessage();
+		msg.addRegistrationToken("token1");
+		msg.addRegistrationToken("flaky1");
+		msg.addRegistrationToken("invalid1");
+		msg.addRegistrationToken("flaky2");
+		msg.putStringData("myKey1", "myValue1");
+
+		// delivered except the flaky tokens
+		mUnavailable = true;
+		FcmResponse res = client.pushToEntities(msg);
+		assertEquals(200, res.getHttpResponseCode());
+		assertEquals(1, deadLetters.size());
+		DeadLetter deadLetter = deadLetters.get(0);
+		assertEquals("Unavailable", deadLetter.getReason());
+		JSONObject request = new JSONObject(deadLetter.getRequestText());
+		assertEquals(2, request.getJSONArray("registration_ids").length());
+		assertEquals("flaky1", request.getJSONArray("registration_ids").getString(0));
+		assertEquals("flaky2", request.getJSONArray("registration_ids").getString(1));
+		assertEquals("myValue1", request.getJSONObject("data").getString("myKey1"));
+
+		mUnavailable = false;
+		client.pushToEntities(msg);
+		assertEquals(1, deadLetters.size());
+	}
+
+	@Test
+	public void test_delayed_delivery_merges_due_tokens() throws InterruptedException {
+		final AtomicInteger sent = new AtomicInteger();
+		DelayedDeliveryQueue queue = new DelayedDeliveryQueue(newClient(), 10, 100, new AudienceListener() {
+			@Override
+			public void onChunkSent(List<String> registrationTokens, FcmResponse response) {
+				sent.addAndGet(response.getSuccess());
+			}
+		});
+
+		EntityMessage msg = new EntityMessage();
+		msg.putStringData("myKey1", "myValue1");
+		long deliverAt = System.currentTimeMillis() + 200;
+		for (int i = 0; i < 1500; i++) {
+			queue.schedule(msg, "token" + i, deliverAt);
+		}
+		assertEquals(1500, queue.getPendingCount());
+
+		queue.start();
+		for (int i = 0; i < 100 && sent.get() < 1500; i++) {
+			Thread.sleep(50);
+		}
+		queue.stop();
+
+		assertEquals(1500, sent.get());
+		assertEquals(2, mNumOfRequests.get());
+		assertEquals(0, queue.getPendingCount());
+	}
+
+	@Test
+	public void test_mxbean() throws Exception {
+		FcmClient client = newClient();
+		ObjectName name = client.registerMBean("test");
+		try {
+			EntityMessage msg = new EntityMessage();
+			msg.addRegistrationToken("token1");
+			msg.addRegistrationToken("token2");
+			msg.putStringData("myKey1", "myValue1");
+			client.pushToEntities(msg);
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(1L, server.getAttribute(name, "TotalRequests"));
+			assertEquals(2L, server.getAttribute(name, "TotalResults"));
+			assertEquals(0d, server.getAttribute(name, "InvalidTokenRate"));
+
+			// paused client holds requests
+			FcmClientMXBean mxBean = client.getMXBean();
+			mxBean.pause();
+			PushPipeline pipeline = new PushPipeline(client, 1, 4, true, null);
+			pipeline.submit(msg);
+			pipeline.submit(msg);
+			Thread.sleep(200);
+			assertEquals(1, mNumOfRequests.get());
+			// 2 messages of 2 tokens
+			assertEquals(4, mxBean.getQueueDepth());
+
+			// the waiting message is discarded, the held one is sent on resume
+			assertEquals(2, server.invoke(name, "drainQueues", null, null));
+			mxBean.resume();
+			assertTrue(pipeline.close(5, TimeUnit.SECONDS));
+			assertEquals(2, mNumOfRequests.get());
+			assertEquals(0, mxBean.getQueueDepth());
+		} finally {
+			client.unregisterMBean();
+		}
+	}
+
+	@Test
+	public void test_warm_up() {
+		FcmClient client = newClient();
+		assertEquals(3, client.warmUp(3));
+
+		assertEquals(3, mNumOfRequests.get());
+		assertTrue(mRequests.get(0).getBoolean("dry_run"));
+
+		// not counted as pushes
+		assertEquals(0, client.getMXBean().getTotalRequests());
+		assertEquals(0, client.getSlowRequestLog().getSlowRequests().size());
+	}
+
+	@Test
+	public void test_campaign_resume() throws Exception {
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < 2500; i++) {
+			tokens.add((i % 100 == 0 ? "invalid" : i % 100 == 1 ? "flaky" : "token") + i);
+		}
+		EntityMessage msg = new EntityMessage();
+		msg.putStringData("myKey1", "myValue1");
+
+		Path file = Files.createTempFile("campaign", ".bin");
+		Files.delete(file);
+		try {
+			mUnavailable = true;
+			Campaign.Progress progress = new Campaign(newClient(), msg, tokens, file).run();
+			assertEquals(3, mNumOfRequests.get());
+			assertEquals(2450, progress.getSent());
+			assertEquals(25, progress.getFailed());
+			assertEquals(25, progress.getInvalid());
+			assertEquals(25, progress.getPending());
+			assertEquals(1.0, progress.getInvalidPercent(), 1e-9);
+
+			// restored from the checkpoint, only the flaky tokens are sent
+			mUnavailable = false;
+			mRequests.clear();
+			Campaign campaign = new Campaign(newClient(), msg, tokens, file);
+			assertEquals(25, campaign.getProgress().getPending());
+			progress = campaign.run();
+			assertTrue(progress.isCompleted());
+			assertEquals(2475, progress.getSent());
+			assertTrue(campaign.isSent(1));
+			assertTrue(campaign.isInvalid(0));
+			// chunks are sent concurrently, so in any order
+			List<Integer> chunkSizes = new ArrayList<Integer>();
+			for (JSONObject request : mRequests) {
+				chunkSizes.add(request.getJSONArray("registration_ids").length());
+			}
+			Collections.sort(chunkSizes);
+			assertEquals(Arrays.asList(5, 10, 10), chunkSizes);
+
+			// checkpoint of another audience is rejected
+			try {
+				new Campaign(newClient(), msg, tokens.subList(1, tokens.size()), file);
+				fail();
+			} catch (IOException e) {
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package org.riversun.fcm.cluster;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.junit.Test;
+import org.riversun.fcm.FcmClient;
+
+/**
+ * Tests for ClusterCoordinator
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class ClusterCoordinatorTest {
+
+	private static List<String> tokens(int count) {
+		final List<String> tokens = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			tokens.add("token" + i);
+		}
+		return tokens;
+	}
+
+	@Test
+	public void test_budget_and_shards_rebalanced() throws Exception {
+		ClusterBackend backend = new InMemoryClusterBackend();
+		FcmClient client1 = new FcmClient();
+		FcmClient client2 = new FcmClient();
+		ClusterCoordinator node1 = new ClusterCoordinator(client1, backend, "node1", 100, 60000);
+		ClusterCoordinator node2 = new ClusterCoordinator(client2, backend, "node2", 100, 60000);
+
+		node1.start();
+		assertEquals(100, client1.getMXBean().getMaxRequestsPerSecond(), 0.001);
+
+		node2.start();
+		node1.refresh();
+		assertEquals(50, client1.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		assertEquals(50, client2.getMXBean().getMaxRequestsPerSecond(), 0.001);
+
+		// every token is sent by exactly one node, spread evenly
+		List<String> audience = tokens(10000);
+		int count1 = 0;
+		int count2 = 0;
+		for (Iterator<String> it = node1.getAssignment().filter(audience.iterator()); it.hasNext(); it.next()) {
+			count1++;
+		}
+		for (String token : audience) {
+			if (node2.getAssignment().owns(token)) {
+				assertFalse(node1.getAssignment().owns(token));
+				count2++;
+			}
+		}
+		assertEquals(10000, count1 + count2);
+		assertTrue(count1 > 3500 && count2 > 3500);
+
+		node2.stop();
+		node1.refresh();
+		assertEquals(100, client1.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		assertEquals(0, client2.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		assertEquals(Arrays.asList("node1"), node1.getAssignment().getNodes());
+
+		node1.stop();
+	}
+
+	@Test
+	public void test_epoch_of_membership() throws Exception {
+		ClusterBackend backend = new InMemoryClusterBackend();
+		ClusterCoordinator node1 = new ClusterCoordinator(new FcmClient(), backend, "node1", 100, 60000);
+		ClusterCoordinator node2 = new ClusterCoordinator(new FcmClient(), backend, "node2", 100, 60000);
+
+		node1.start();
+		ShardAssignment pinned = node1.getAssignment();
+		assertTrue(node1.isCurrent(pinned));
+
+		node2.start();
+		// node1 has not renewed yet, so the nodes disagree
+		assertTrue(node1.isCurrent(pinned));
+		assertTrue(pinned.getEpoch() != node2.getAssignment().getEpoch());
+
+		node1.refresh();
+		assertFalse(node1.isCurrent(pinned));
+		assertEquals(node1.getAssignment().getEpoch(), node2.getAssignment().getEpoch());
+
+		node2.stop();
+		node1.refresh();
+		assertEquals(pinned.getEpoch(), node1.getAssignment().getEpoch());
+		node1.stop();
+	}
+
+	@Test
+	public void test_operator_settings_are_kept() throws Exception {
+		final FlakyBackend backend = new FlakyBackend();
+		FcmClient client = new FcmClient();
+		client.getMXBean().setMaxRequestsPerSecond(3);
+		ClusterCoordinator node1 = new ClusterCoordinator(client, backend, "node1", 100, 60);
+
+		node1.start();
+		assertEquals(100, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+
+		// rate set by an operator is not overwritten on renewal
+		client.getMXBean().setMaxRequestsPerSecond(7);
+		node1.refresh();
+		assertEquals(7, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+
+		// pause by an operator is not resumed when the lease is renewed
+		client.getMXBean().pause();
+		backend.mDown = true;
+		waitUntilSuspended(client, true);
+		backend.mDown = false;
+		waitUntilSuspended(client, false);
+		assertTrue(client.getMXBean().isPaused());
+
+		// nor the rate restored on stop
+		node1.stop();
+		assertEquals(7, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		assertTrue(client.getMXBean().isPaused());
+
+		// explicit global rate takes the rate over again
+		client.getMXBean().resume();
+		node1.start();
+		assertEquals(100, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		client.getMXBean().setMaxRequestsPerSecond(9);
+		node1.refresh();
+		assertEquals(9, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		node1.setGlobalRequestsPerSecond(50);
+		assertEquals(50, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+		node1.stop();
+		assertEquals(7, client.getMXBean().getMaxRequestsPerSecond(), 0.001);
+	}
+
+	private static void waitUntilSuspended(FcmClient client, boolean suspended) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (client.isSuspended() != suspended) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static class FlakyBackend implements ClusterBackend {
+
+		private final ClusterBackend mBackend = new InMemoryClusterBackend();
+
+		volatile boolean mDown = false;
+
+		@Override
+		public SortedSet<String> renew(String nodeId, long leaseMillis) throws IOException {
+			if (mDown) {
+				throw new IOException("backend is down");
+			}
+			return mBackend.renew(nodeId, leaseMillis);
+		}
+
+		@Override
+		public void leave(String nodeId) throws IOException {
+			mBackend.leave(nodeId);
+		}
+	}
+
+	@Test
+	public void test_joining_node_takes_over_tokens_only_from_others() {
+		ConsistentHashRing ring2 = new ConsistentHashRing(Arrays.asList("node1", "node2"));
+		ConsistentHashRing ring3 = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"));
+
+		int moved = 0;
+		for (String token : tokens(10000)) {
+			String before = ring2.getOwner(token);
+			String after = ring3.getOwner(token);
+			if (!before.equals(after)) {
+				assertEquals("node3", after);
+				moved++;
+			}
+		}
+		assertTrue(moved > 2000 && moved < 4700);
+	}
+
+	@Test
+	public void test_file_backend() throws Exception {
+		File file = File.createTempFile("fcm-cluster", ".txt");
+		file.deleteOnExit();
+
+		FileClusterBackend backend1 = new FileClusterBackend(file.toPath());
+		FileClusterBackend backend2 = new FileClusterBackend(file.toPath());
+
+		assertEquals(Arrays.asList("node1"), new ArrayList<String>(backend1.renew("node1", 60000)));
+		assertEquals(Arrays.asList("node1", "node2"), new ArrayList<String>(backend2.renew("node2", 60000)));
+
+		// expired lease is dropped
+		backend2.renew("node2", 1);
+		Thread.sleep(10);
+		assertEquals(Arrays.asList("node1"), new ArrayList<String>(backend1.renew("node1", 60000)));
+
+		backend1.leave("node1");
+		assertEquals(Arrays.asList("node2"), new ArrayList<String>(backend2.renew("node2", 60000)));
+	}
+}
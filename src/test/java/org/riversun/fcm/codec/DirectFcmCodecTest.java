@@ -0,0 +1,118 @@
+package org.riversun.fcm.codec;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.riversun.fcm.model.EntityMessage;
+import org.riversun.fcm.model.FcmResponse;
+import org.riversun.fcm.model.Notification;
+import org.riversun.fcm.model.Priority;
+
+import static org.junit.Assert.*;
+
+/**
+ * 
+ * UT for DirectFcmCodec
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class DirectFcmCodecTest {
+	@Rule
+	public TestName name = new TestName();
+
+	@Before
+	public void setUp() throws Exception {
+	}
+
+	@After
+	public void tearDown() throws Exception {
+	}
+
+	@Test
+	public void test_encode_same_as_org_json() {
+		final EntityMessage msg = new EntityMessage();
+		msg.putStringData("nothing", null);
+		msg.putStringData("plain", "value");
+		msg.putStringData("escaped", "\"quote\" \\ </script> \b\t\n\f\r \u0001 \u0085  ");
+		msg.putStringData("unicode", "あé 😀 \ud83d");
+		msg.putBooleanData("flag", false);
+		msg.putData("int", 42);
+		msg.putData("double", 1.5);
+		msg.setNotification(new Notification.Builder().title("title").body("body").bodyLocArgs("a", "b").build());
+		msg.setPriority(Priority.HIGH);
+		msg.setTimeToLive(60);
+		msg.setContentAvailable(true);
+		msg.setMutableContent(false);
+		msg.setDryRun(true);
+
+		final List<String> tokens = Arrays.asList("token1", "token2");
+
+		final byte[] expected = msg.toJsonObject(tokens).toString().getBytes(StandardCharsets.UTF_8);
+		final byte[] actual = new DirectFcmCodec().encode(msg, tokens);
+
+		// members may be in different order
+		assertEquals(expected.length, actual.length);
+		assertTrue(new JSONObject(new String(expected, StandardCharsets.UTF_8)).similar(new JSONObject(new String(actual, StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void test_encode_skips_absent_fields() {
+		final EntityMessage msg = new EntityMessage();
+		final byte[] actual = new DirectFcmCodec().encode(msg, Arrays.asList("token1"));
+		assertEquals("{\"registration_ids\":[\"token1\"]}", new String(actual, StandardCharsets.UTF_8));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void test_encode_exceeds_limit() {
+		final EntityMessage msg = new EntityMessage();
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < EntityMessage.MAX_PAYLOAD_SIZE; i++) {
+			sb.append('x');
+		}
+		msg.putStringData("large", sb.toString());
+		new DirectFcmCodec().encode(msg, Arrays.asList("token1"));
+	}
+
+	@Test
+	public void test_decode_and_discovery() {
+		final byte[] body = "{\"multicast_id\":1,\"success\":1,\"failure\":1,\"canonical_ids\":0,\"results\":[{\"message_id\":\"0:1\"},{\"error\":\"NotRegistered\"}]}"
+				.getBytes(StandardCharsets.UTF_8);
+
+		final FcmResponse direct = new DirectFcmCodec().decode(200, body);
+		final FcmResponse orgJson = new OrgJsonFcmCodec().decode(200, body);
+		assertEquals(orgJson.getResult().size(), direct.getResult().size());
+		assertEquals("NotRegistered", direct.getResult().get(1).getError());
+
+		assertEquals(DirectFcmCodec.NAME, FcmCodecs.getDefault().getName());
+		assertEquals(OrgJsonFcmCodec.NAME, FcmCodecs.get(OrgJsonFcmCodec.NAME).getName());
+		assertNull(FcmCodecs.get("unknown"));
+	}
+}
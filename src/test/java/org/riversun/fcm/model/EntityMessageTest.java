@@ -0,0 +1,149 @@
+package org.riversun.fcm.model;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests for EntityMessage
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class EntityMessageTest {
+
+	private static int encodedDataSize(EntityMessage msg) {
+		final JSONObject data = new JSONObject(msg.toJson()).optJSONObject("data");
+		return (data != null ? data.toString() : "{}").getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	@Test
+	public void test_data_size_empty() {
+		EntityMessage msg = new EntityMessage();
+		assertEquals(2, msg.getDataSize());
+		assertEquals(encodedDataSize(msg), msg.getDataSize());
+	}
+
+	@Test
+	public void test_data_size_accounting() {
+		EntityMessage msg = new EntityMessage();
+		msg.putStringData("myKey1", "myValue1");
+		msg.putBooleanData("flag", true);
+		msg.putData("count", 12345);
+		msg.putData("ratio", 1.5d);
+		msg.putStringData("escaped", "a\"b\\c</d\n\u0001éあ😀");
+		assertEquals(encodedDataSize(msg), msg.getDataSize());
+
+		// replace existing key
+		msg.putStringData("myKey1", "v");
+		msg.putBooleanData("flag", false);
+		assertEquals(encodedDataSize(msg), msg.getDataSize());
+
+		// null values are dropped by org.json
+		msg.putStringData("nothing", null);
+		msg.putStringData("myKey1", null);
+		assertEquals(encodedDataSize(msg), msg.getDataSize());
+		msg.putStringData("myKey1", "again");
+		assertEquals(encodedDataSize(msg), msg.getDataSize());
+	}
+
+	@Test
+	public void test_fits_limit() {
+		EntityMessage msg = new EntityMessage();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < EntityMessage.MAX_PAYLOAD_SIZE; i++) {
+			sb.append('x');
+		}
+		msg.putStringData("big", sb.toString());
+		assertFalse(msg.fitsLimit());
+
+		try {
+			msg.toJsonObject();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		msg.putStringData("big", "small");
+		assertTrue(msg.fitsLimit());
+		assertNotNull(msg.toJsonObject());
+	}
+
+	@Test
+	public void test_reserved_keys() {
+		EntityMessage msg = new EntityMessage();
+		String[] reserved = { "from", "google.sent_time", "gcm.notification" };
+		for (String key : reserved) {
+			try {
+				msg.putStringData(key, "value");
+				fail(key);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		msg.putStringData("fromDate", "value");
+		assertEquals(encodedDataSize(msg), msg.getDataSize());
+	}
+
+	@Test
+	public void test_absent_fields_are_skipped() {
+		EntityMessage msg = new EntityMessage();
+		msg.addRegistrationToken("token1");
+		JSONObject json = new JSONObject(msg.toJson());
+		assertEquals(1, json.length());
+		assertTrue(json.has("registration_ids"));
+	}
+
+	@Test
+	public void test_notification_and_options() {
+		EntityMessage msg = new EntityMessage();
+		msg.addRegistrationToken("token1");
+		msg.setNotification(new Notification.Builder().title("title").body("body").bodyLocArgs("a", "b").build());
+		msg.setPriority(Priority.HIGH);
+		msg.setTimeToLive(60);
+		msg.setContentAvailable(true);
+		msg.setMutableContent(false);
+		msg.setDryRun(true);
+
+		JSONObject json = new JSONObject(msg.toJson());
+		assertEquals("title", json.getJSONObject("notification").getString("title"));
+		assertEquals("b", json.getJSONObject("notification").getJSONArray("body_loc_args").getString(1));
+		assertFalse(json.getJSONObject("notification").has("icon"));
+		assertEquals("high", json.getString("priority"));
+		assertEquals(60, json.getInt("time_to_live"));
+		assertTrue(json.getBoolean("content_available"));
+		assertFalse(json.getBoolean("mutable_content"));
+		assertTrue(json.getBoolean("dry_run"));
+		assertFalse(json.has("data"));
+
+		String notificationText = json.getJSONObject("notification").toString();
+		assertEquals(2 + notificationText.getBytes(StandardCharsets.UTF_8).length, msg.getPayloadSize());
+
+		try {
+			msg.setTimeToLive(EntityMessage.MAX_TIME_TO_LIVE + 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -21,6 +21,12 @@ package org.riversun.fcm.model;
  * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  * 
  */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -123,4 +129,58 @@ public class FcmResponseTest {
 		assertNull(o.getResult().get(1).getRegistrationId());
 	}
 
+	@Test
+	public void test_parse_raw_body() {
+
+		String jsonText = "{ \"multicast_id\": 5555, \"success\": 2, \"failure\": 2, \"canonical_ids\": 1, \"results\": [ {\"message_id\":\"m:1\"},"
+				+ " {\"error\":\"NotRegistered\"}, {\"message_id\":\"m:2\",\"registration_id\":\"new\\/token\\u00e9\"}, {\"error\":\"Unavailable\"} ] }";
+		FcmResponse o = new FcmResponse(200, jsonText.getBytes(StandardCharsets.UTF_8));
+		assertEquals(5555L, (long) o.getMulticastId());
+		assertEquals(2, (int) o.getSuccess());
+		assertEquals(2, o.getFailure());
+		assertEquals(1, o.getCanonicalIds());
+		assertEquals(4, o.getResultCount());
+
+		final List<String> failures = new ArrayList<String>();
+		o.forEachFailure(new FcmResponse.FailureVisitor() {
+			@Override
+			public void onFailure(int index, String error) {
+				failures.add(index + ":" + error);
+			}
+		});
+		assertEquals(Arrays.asList("1:NotRegistered", "3:Unavailable"), failures);
+
+		final List<String> canonicalIds = new ArrayList<String>();
+		o.forEachCanonicalId(new FcmResponse.CanonicalIdVisitor() {
+			@Override
+			public void onCanonicalId(int index, String registrationId) {
+				canonicalIds.add(index + ":" + registrationId);
+			}
+		});
+		assertEquals(Arrays.asList("2:new/token\u00e9"), canonicalIds);
+
+		assertEquals("m:2", o.getResult(2).getMessageId());
+		assertEquals(4, o.getResult().size());
+		assertEquals("NotRegistered", o.getResult().get(1).getError());
+		assertEquals(5555L, o.getJson().getLong("multicast_id"));
+	}
+
+	@Test
+	public void test_parse_raw_body_same_as_json() {
+
+		String jsonText = "{\"multicast_id\":12121212,\"success\":1,\"failure\":1,\"canonical_ids\":0,\"results\":[{\"message_id\":\"abcdef\"},{\"error\":\"InvalidRegistration\"}]}";
+		FcmResponse expected = new FcmResponse(200, new JSONObject(jsonText));
+		FcmResponse o = new FcmResponse(200, jsonText.getBytes(StandardCharsets.UTF_8));
+		assertEquals(expected.toString(), o.toString());
+
+		// all success without results
+		o = new FcmResponse(200, "{\"success\":0,\"failure\":0,\"canonical_ids\":0}".getBytes(StandardCharsets.UTF_8));
+		assertNull(o.getResult());
+		assertEquals(0, o.getResultCount());
+	}
+
+	@Test(expected = JSONException.class)
+	public void test_parse_raw_body_not_object() {
+		new FcmResponse(200, "<html></html>".getBytes(StandardCharsets.UTF_8));
+	}
 }
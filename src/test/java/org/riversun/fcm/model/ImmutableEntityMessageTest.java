@@ -0,0 +1,113 @@
+package org.riversun.fcm.model;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests for ImmutableEntityMessage
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class ImmutableEntityMessageTest {
+
+	@Test
+	public void test_same_json_as_entity_message() {
+		EntityMessage msg = new EntityMessage();
+		msg.addRegistrationToken("token1");
+		msg.addRegistrationToken("token\"2");
+		msg.putStringData("myKey1", "myValue1");
+		msg.putBooleanData("flag", true);
+		msg.setNotification(new Notification.Builder().title("title").build());
+		msg.setPriority(Priority.HIGH);
+		msg.setTimeToLive(0);
+
+		ImmutableEntityMessage immutable = msg.toImmutable();
+		assertEquals(new JSONObject(msg.toJson()).toString(), immutable.toJsonObject().toString());
+		assertEquals(msg.getPayloadSize(), immutable.getPayloadSize());
+
+		// cached
+		assertSame(immutable.toJson(), immutable.toJson());
+	}
+
+	@Test
+	public void test_derived_messages_share_payload() {
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < 2500; i++) {
+			tokens.add("token" + i);
+		}
+		ImmutableEntityMessage msg = new ImmutableEntityMessage.Builder()
+				.putStringData("myKey1", "myValue1")
+				.registrationTokens(tokens)
+				.build();
+
+		// builder copied the list
+		tokens.clear();
+		assertEquals(2500, msg.getRegistrationTokens().size());
+
+		List<ImmutableEntityMessage> chunks = msg.chunks();
+		assertEquals(3, chunks.size());
+		assertEquals(500, chunks.get(2).getRegistrationTokens().size());
+		assertSame(msg.getDataMap(), chunks.get(2).getDataMap());
+
+		JSONObject json = chunks.get(1).toJsonObject();
+		assertEquals("token1000", json.getJSONArray("registration_ids").getString(0));
+		assertEquals("myValue1", json.getJSONObject("data").getString("myKey1"));
+
+		ImmutableEntityMessage other = msg.toBuilder().putStringData("myKey2", "myValue2").build();
+		assertEquals(1, msg.getDataMap().size());
+		assertEquals(2, other.getDataMap().size());
+		assertSame(msg.getRegistrationTokens(), other.getRegistrationTokens());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void test_immutable() {
+		ImmutableEntityMessage msg = new ImmutableEntityMessage.Builder().registrationTokens("token1").build();
+		msg.getRegistrationTokens().add("token2");
+	}
+
+	@Test
+	public void test_json_bytes_and_to_entity_message() {
+		ImmutableEntityMessage msg = new ImmutableEntityMessage.Builder()
+				.putStringData("myKey1", "myValue1")
+				.notification(new Notification.Builder().title("title").build())
+				.priority(Priority.HIGH)
+				.idempotencyKey("key1")
+				.registrationTokens("token1", "token2")
+				.build();
+
+		// cached
+		assertSame(msg.toJsonBytes(), msg.toJsonBytes());
+		assertEquals(msg.toJson(), new String(msg.toJsonBytes(), StandardCharsets.UTF_8));
+
+		EntityMessage mutable = msg.toEntityMessage();
+		assertEquals("key1", mutable.getIdempotencyKey());
+		assertTrue(msg.toJsonObject().similar(new JSONObject(mutable.toJsonObject(mutable.getRegistrationTokenList()).toString())));
+	}
+}
@@ -0,0 +1,122 @@
+package org.riversun.fcm.model;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for RegistrationTokenSet
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class RegistrationTokenSetTest {
+
+	@Test
+	public void test_add_remove_contains() {
+		RegistrationTokenSet set = new RegistrationTokenSet();
+		assertTrue(set.add("token1"));
+		assertTrue(set.add("token2"));
+		assertFalse(set.add("token1"));
+		assertEquals(2, set.size());
+
+		assertTrue(set.contains("token1"));
+		assertTrue(set.remove("token1"));
+		assertFalse(set.contains("token1"));
+		assertFalse(set.remove("token1"));
+		assertEquals(1, set.size());
+		assertEquals("token2", set.get(0));
+	}
+
+	@Test
+	public void test_random_operations_against_hash_set() {
+		RegistrationTokenSet set = new RegistrationTokenSet();
+		Set<String> expected = new HashSet<String>();
+		Random rnd = new Random(12345);
+
+		for (int i = 0; i < 100000; i++) {
+			String token = "token:" + rnd.nextInt(5000);
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(expected.remove(token), set.remove(token));
+			} else {
+				assertEquals(expected.add(token), set.add(token));
+			}
+		}
+
+		assertEquals(expected.size(), set.size());
+		assertEquals(expected, new HashSet<String>(set.chunk(0, set.size())));
+		for (String token : expected) {
+			assertTrue(set.contains(token));
+		}
+	}
+
+	@Test
+	public void test_chunks() {
+		RegistrationTokenSet set = new RegistrationTokenSet();
+		for (int i = 0; i < 2500; i++) {
+			set.add("token" + i);
+		}
+
+		List<RegistrationTokenSet.Chunk> chunks = set.chunks();
+		assertEquals(3, chunks.size());
+		assertEquals(1000, chunks.get(0).size());
+		assertEquals(500, chunks.get(2).size());
+		assertEquals("token2000", chunks.get(2).get(0));
+
+		// share tokens with another set
+		RegistrationTokenSet other = new RegistrationTokenSet();
+		assertEquals(1000, other.addAll(chunks.get(1)));
+		assertEquals("token1000", other.get(0));
+		assertTrue(other.contains("token1999"));
+		assertFalse(other.contains("token0"));
+
+		set.remove("token0");
+		try {
+			chunks.get(0).get(0);
+			fail();
+		} catch (ConcurrentModificationException e) {
+		}
+	}
+
+	@Test
+	public void test_entity_message_deduplicates_tokens() {
+		EntityMessage msg = new EntityMessage();
+		List<String> list = new ArrayList<String>();
+		list.add("a");
+		list.add("b");
+		list.add("a");
+		msg.setRegistrationTokenList(list);
+		assertEquals(2, msg.getRegistrationTokenCount());
+
+		msg.removeRegistrationToken("a");
+		assertEquals(1, msg.getRegistrationTokenCount());
+		assertEquals("b", msg.getRegistrationTokenList().get(0));
+	}
+}
@@ -0,0 +1,148 @@
+package org.riversun.fcm.model;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for TokenRegistry
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class TokenRegistryTest {
+
+	@Test
+	public void test_random_operations_match_map() {
+		TokenRegistry registry = new TokenRegistry();
+		Map<String, String> expected = new HashMap<String, String>();
+		Random random = new Random(1);
+
+		for (int i = 0; i < 20000; i++) {
+			String token = "token" + random.nextInt(2000);
+			String user = "user" + random.nextInt(300);
+			switch (random.nextInt(4)) {
+			case 0:
+				assertEquals(expected.containsKey(token), registry.unregister(token));
+				expected.remove(token);
+				break;
+			case 1:
+				int count = 0;
+				for (String owner : expected.values()) {
+					if (owner.equals(user)) {
+						count++;
+					}
+				}
+				assertEquals(count, registry.removeUser(user));
+				expected.values().removeAll(Arrays.asList(user));
+				break;
+			default:
+				assertEquals(!user.equals(expected.get(token)), registry.register(user, token));
+				expected.put(token, user);
+			}
+		}
+
+		assertEquals(expected.size(), registry.getTokenCount());
+		assertEquals(new HashSet<String>(expected.values()).size(), registry.getUserCount());
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), registry.getUser(entry.getKey()));
+			assertTrue(registry.getTokens(entry.getValue()).contains(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void test_lookup_and_fan_out() {
+		TokenRegistry registry = new TokenRegistry();
+		for (int i = 0; i < 1500; i++) {
+			registry.register("user" + (i % 600), "token" + i);
+		}
+
+		RegistrationTokenSet tokens = registry.lookup(Arrays.asList("user0", "user1", "unknown"));
+		assertEquals(6, tokens.size());
+		assertTrue(tokens.contains("token600"));
+
+		List<String> users = new ArrayList<String>();
+		for (int i = 0; i < 600; i++) {
+			users.add("user" + i);
+		}
+		ImmutableEntityMessage template = new ImmutableEntityMessage.Builder().putStringData("myKey1", "myValue1").build();
+		List<ImmutableEntityMessage> messages = registry.fanOut(template, users);
+		assertEquals(2, messages.size());
+		assertEquals(1000, messages.get(0).getRegistrationTokens().size());
+		assertEquals(500, messages.get(1).getRegistrationTokens().size());
+		assertTrue(messages.get(0).getRegistrationTokens() instanceof RegistrationTokenSet.Chunk);
+		assertTrue(messages.get(1).toJson().contains("\"" + messages.get(1).getRegistrationTokens().get(499) + "\""));
+	}
+
+	@Test
+	public void test_apply_response() {
+		TokenRegistry registry = new TokenRegistry();
+		registry.register("alice", "a1");
+		registry.register("alice", "a2");
+		registry.register("bob", "b1");
+
+		String body = "{\"multicast_id\":1,\"success\":2,\"failure\":1,\"canonical_ids\":1,\"results\":[{\"message_id\":\"m1\",\"registration_id\":\"a3\"},"
+				+ "{\"message_id\":\"m2\"},{\"error\":\"NotRegistered\"}]}";
+		FcmResponse res = new FcmResponse(200, body.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(2, registry.apply(Arrays.asList("a1", "a2", "b1"), res));
+		assertEquals(new HashSet<String>(Arrays.asList("a2", "a3")), new HashSet<String>(registry.getTokens("alice")));
+		assertNull(registry.getUser("a1"));
+		assertNull(registry.getUser("b1"));
+		assertEquals(0, registry.getTokens("bob").size());
+		assertEquals(1, registry.getUserCount());
+	}
+
+	@Test
+	public void test_snapshot() throws Exception {
+		TokenRegistry registry = new TokenRegistry();
+		for (int i = 0; i < 100; i++) {
+			registry.register("user" + (i % 7), "token" + i);
+		}
+
+		File file = File.createTempFile("fcm-registry", ".bin");
+		file.deleteOnExit();
+		registry.save(file.toPath());
+
+		TokenRegistry loaded = new TokenRegistry();
+		loaded.register("stale", "stale-token");
+		loaded.load(file.toPath());
+
+		assertEquals(100, loaded.getTokenCount());
+		assertEquals(7, loaded.getUserCount());
+		assertNull(loaded.getUser("stale-token"));
+		for (int i = 0; i < 7; i++) {
+			assertEquals(registry.getTokens("user" + i), loaded.getTokens("user" + i));
+		}
+	}
+}
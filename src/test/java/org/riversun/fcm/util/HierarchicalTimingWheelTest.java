@@ -0,0 +1,114 @@
+package org.riversun.fcm.util;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for HierarchicalTimingWheel
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class HierarchicalTimingWheelTest {
+
+	@Test
+	public void test_entries_expire_at_their_tick() {
+		final long tickMillis = 10;
+		final long start = 1000000;
+		HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<Long>(tickMillis, start);
+
+		Random rnd = new Random(1);
+		List<Long> deadlines = new ArrayList<Long>();
+		for (int i = 0; i < 20000; i++) {
+			// up to beyond the range of the top level
+			long delay = (long) Math.pow(2, rnd.nextDouble() * 40);
+			long deadline = start + delay;
+			deadlines.add(deadline);
+			wheel.add(deadline, deadline);
+		}
+		assertEquals(20000, wheel.size());
+
+		final List<Long> expired = new ArrayList<Long>();
+		final long[] now = new long[1];
+
+		long maxDeadline = 0;
+		for (long deadline : deadlines) {
+			maxDeadline = Math.max(maxDeadline, deadline);
+		}
+
+		Collections.sort(deadlines);
+		int numOfDue = 0;
+
+		// advance in steps of various size
+		for (now[0] = start; now[0] <= maxDeadline;) {
+			now[0] += tickMillis * (1 + rnd.nextInt(1 << rnd.nextInt(24)));
+			wheel.advance(now[0], new HierarchicalTimingWheel.ExpiredHandler<Long>() {
+				@Override
+				public void onExpired(Long deadline) {
+					assertTrue(deadline / tickMillis <= now[0] / tickMillis);
+					expired.add(deadline);
+				}
+			});
+
+			// nothing is late
+			while (numOfDue < deadlines.size() && deadlines.get(numOfDue) / tickMillis <= now[0] / tickMillis) {
+				numOfDue++;
+			}
+			assertEquals(numOfDue, expired.size());
+		}
+		assertEquals(20000, expired.size());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void test_entries_do_not_expire_early() {
+		HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<String>(1, 0);
+		wheel.add(64 * 64 + 5, "a");
+		wheel.add(-1, "past");
+
+		final List<String> expired = new ArrayList<String>();
+		HierarchicalTimingWheel.ExpiredHandler<String> handler = new HierarchicalTimingWheel.ExpiredHandler<String>() {
+			@Override
+			public void onExpired(String value) {
+				expired.add(value);
+			}
+		};
+
+		wheel.advance(0, handler);
+		assertEquals(1, expired.size());
+		assertEquals("past", expired.get(0));
+
+		for (long t = 1; t < 64 * 64 + 5; t++) {
+			wheel.advance(t, handler);
+			assertEquals(1, expired.size());
+		}
+		wheel.advance(64 * 64 + 5, handler);
+		assertEquals("a", expired.get(1));
+	}
+}
@@ -0,0 +1,85 @@
+package org.riversun.fcm.util;
+
+/*
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for RateLimiter
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void test_spaces_out_permits() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(100);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 11; i++) {
+			limiter.acquire();
+		}
+		// first permit is immediate
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(95));
+	}
+
+	@Test
+	public void test_waiters_follow_raised_rate() throws InterruptedException {
+		final RateLimiter limiter = new RateLimiter(1000);
+		limiter.acquire();
+
+		// throttled hard while senders are waiting
+		limiter.setRate(0.01);
+		limiter.acquire();
+		final int numOfWaiters = 4;
+		final CountDownLatch acquired = new CountDownLatch(numOfWaiters);
+		for (int i = 0; i < numOfWaiters; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						limiter.acquire();
+						acquired.countDown();
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+		// raised again, the waiters do not sleep out the old schedule
+		limiter.setRate(1000);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+
+		// unlimited
+		limiter.setRate(0.01);
+		limiter.acquire();
+		limiter.setRate(0);
+		limiter.acquire();
+	}
+}